@@ -0,0 +1,266 @@
+package core;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Vector;
+
+import core.data.InterfaceData;
+import core.model.DeviceModel;
+import core.model.NetworkModel;
+import core.model.ServerModel;
+import core.model.ThornsecModel;
+
+/**
+ * Generates a Router for synthetic networks of increasing size, and writes a script which measures how fast
+ * each of their firewalls can forward.  This gives us a baseline to check changes to our rule layout against.
+ *
+ * Each size is run with the iptables backend, the nftables backend, and nftables with flow offloading.
+ *
+ * The script is Linux only, and needs root, but no hardware or outside network.  Each Router is stood up in
+ * its own network namespace, with a veth pair (bridged to lan0) to a namespace holding all of its devices' addresses,
+ * and another to one standing in for the internet.  Its generated firewall is loaded, then TCP streams
+ * from devices spread across the network (including the last, which is furthest down the chains) are driven
+ * through it.
+ *
+ * Results are printed as CSV: firewall, devices, rules, packets per second forwarded, and average/max ping through
+ * the Router.
+ */
+public class Benchmark {
+
+	private static final String NETWORK = "bench";
+	private static final String ROUTER  = "router";
+
+	//Only the devices which fit in 10.50.0.0/16 (a /24 each), so we measure the layout every network has
+	private static final Integer MAX_DEVICES = 254;
+
+	private static final Integer[] DEFAULT_DEVICES  = { 10, 50, 100, 250 };
+	private static final String[]  DEFAULT_VARIANTS = { "iptables", "nftables", "offload" };
+
+	/**
+	 * @param args [0] - Where to write the script (default ./benchmark.sh),
+	 *             [1..] - How many devices (up to 254) to benchmark with, and/or which of iptables, nftables and offload to run
+	 * @throws Exception Cannot write the script
+	 */
+	public static void main(String[] args) throws Exception {
+		String path = (args.length > 0) ? args[0] : "./benchmark.sh";
+
+		Vector<Integer> sizes    = new Vector<Integer>();
+		Vector<String>  variants = new Vector<String>();
+		for (int i = 1; i < args.length; ++i) {
+			if (args[i].matches("[0-9]+")) {
+				sizes.add(Integer.parseInt(args[i]));
+			}
+			else {
+				variants.add(args[i]);
+			}
+		}
+		if (sizes.isEmpty()) {
+			sizes.addAll(Arrays.asList(DEFAULT_DEVICES));
+		}
+		for (Integer size : sizes) {
+			if (size < 1 || size > MAX_DEVICES) {
+				System.err.println("Can't benchmark a network with " + size + " devices.  It must be between 1 and " + MAX_DEVICES + ", so they all fit in 10.50.0.0/16.");
+				System.exit(1);
+			}
+		}
+		if (variants.isEmpty()) {
+			variants.addAll(Arrays.asList(DEFAULT_VARIANTS));
+		}
+
+		String sh = getHeader(variants);
+
+		for (Integer size : sizes) {
+			for (String variant : variants) {
+				System.out.println("Generating a network with " + size + " devices, for " + variant);
+
+				ThornsecModel model = new ThornsecModel();
+				model.read(getNetwork(size, variant));
+				model.init();
+
+				sh += getRun(model.getNetworkModel(NETWORK), size, variant);
+			}
+		}
+
+		Files.write(Paths.get(path), sh.getBytes(StandardCharsets.UTF_8));
+		new File(path).setExecutable(true);
+
+		System.out.println("Written to " + path + ". Run it as root.");
+	}
+
+	/**
+	 * A Router, on 198.51.100.1, and the given number of users.
+	 * They aren't throttled, as throttled connections are never offloaded.
+	 */
+	private static String getNetwork(Integer devices, String variant) {
+		String json = "";
+		json += "{\"" + NETWORK + "\":{";
+		json += "\"ip\":\"10.0.0.1\",";
+		json += "\"domain\":\"bench.local\",";
+		json += "\"gpg\":\"bench@bench.local\",";
+		json += "\"adminemail\":\"bench@bench.local\",";
+		json += "\"firewallbackend\":\"" + (variant.equals("iptables") ? "iptables" : "nftables") + "\",";
+		json += "\"flowoffload\":\"" + variant.equals("offload") + "\",";
+		json += "\"servers\":{";
+		json += "\"" + ROUTER + "\":{";
+		json += "\"types\":[\"router\"],";
+		json += "\"wan\":[{\"iface\":\"wan0\",\"inettype\":\"static\",\"address\":\"198.51.100.1\",\"netmask\":\"255.255.255.0\",\"broadcast\":\"198.51.100.255\",\"gateway\":\"198.51.100.2\"}],";
+		json += "\"lan\":[{\"iface\":\"lan1\"}]";
+		json += "}},";
+		json += "\"users\":{";
+
+		for (int i = 1; i <= devices; ++i) {
+			json += (i == 1) ? "" : ",";
+			json += "\"user" + i + "\":{\"macs\":[\"" + String.format("02:00:00:00:%02x:%02x", i >> 8, i & 0xff) + "\"],\"throttle\":\"false\"}";
+		}
+
+		json += "}}}";
+
+		return json;
+	}
+
+	private static String getRun(NetworkModel network, Integer size, String variant) {
+		ServerModel router = network.getServerModel(ROUTER);
+
+		Integer cidr = Integer.bitCount(ByteBuffer.wrap(network.getData().getNetmask().getAddress()).getInt());
+
+		//"address gateway cidr", one per line
+		Vector<String> devices = new Vector<String>();
+		for (DeviceModel device : network.getUserDevices()) {
+			for (InterfaceData iface : device.getInterfaces()) {
+				InetAddress address = iface.getAddress();
+				InetAddress gateway = iface.getGateway();
+
+				if (address != null && gateway != null) {
+					devices.add(address.getHostAddress() + " " + gateway.getHostAddress() + " " + cidr);
+				}
+			}
+		}
+
+		String sh = "";
+		sh += "\n";
+		sh += "echo \"" + String.join("\n", devices) + "\" > \"$work/devices\"\n";
+		if (variant.equals("iptables")) {
+			sh += "echo \"" + network.getIPSet().getRestore() + "\" > \"$work/ipsets.conf\"\n";
+			sh += "echo \"" + router.getFirewallModel().getIptablesRestore() + "\" > \"$work/iptables.conf\"\n";
+			sh += "if setup && load_iptables; then\n";
+		}
+		else {
+			sh += "echo \"" + router.getFirewallModel().getNftRuleset() + "\" > \"$work/ruleset.nft\"\n";
+			sh += "if setup && load_nftables; then\n";
+		}
+		sh += "\trun " + variant + " " + size + "\n";
+		sh += "else\n";
+		sh += "\techo \"Couldn't set up the network with " + size + " devices, for " + variant + "\" >&2\n";
+		sh += "fi\n";
+
+		return sh;
+	}
+
+	private static String getHeader(Vector<String> variants) {
+		String tools = "ip iperf3 ping";
+		tools += variants.contains("iptables") ? " iptables-restore iptables-save ipset" : "";
+		tools += (variants.contains("nftables") || variants.contains("offload")) ? " nft" : "";
+
+		String sh = "";
+		sh += "#!/bin/bash\n";
+		sh += "#Generated by ThornSec's Benchmark.  Linux only, and must be run as root.\n";
+		sh += "#SECONDS_PER_RUN (default 10) and STREAMS (default 4) can be set in the environment.\n";
+		sh += "\n";
+		sh += "secs=${SECONDS_PER_RUN:-10}\n";
+		sh += "streams=${STREAMS:-4}\n";
+		sh += "\n";
+		sh += "if [ \"$(id -u)\" != \"0\" ]; then\n";
+		sh += "\techo \"This needs to be run as root\" >&2\n";
+		sh += "\texit 1\n";
+		sh += "fi\n";
+		sh += "\n";
+		sh += "for tool in " + tools + "; do\n";
+		sh += "\tif ! command -v $tool > /dev/null; then\n";
+		sh += "\t\techo \"This needs $tool to be installed\" >&2\n";
+		sh += "\t\texit 1\n";
+		sh += "\tfi\n";
+		sh += "done\n";
+		sh += "\n";
+		sh += "work=$(mktemp -d)\n";
+		sh += "\n";
+		sh += "teardown() {\n";
+		sh += "\tfor ns in tsb_router tsb_lan tsb_wan; do\n";
+		sh += "\t\tip netns del $ns 2> /dev/null\n";
+		sh += "\tdone\n";
+		sh += "}\n";
+		sh += "\n";
+		sh += "trap 'teardown; rm -rf \"$work\"' EXIT\n";
+		sh += "\n";
+		//Every device's address lives on the one veth, each with its own /30 to the router, as on a real lan0
+		sh += "setup() {\n";
+		sh += "\tteardown\n";
+		sh += "\tfor ns in tsb_router tsb_lan tsb_wan; do\n";
+		sh += "\t\tip netns add $ns || return 1\n";
+		sh += "\t\tip -n $ns link set lo up\n";
+		sh += "\tdone\n";
+		sh += "\tip -n tsb_router link add lan0 type bridge || return 1\n";
+		sh += "\tip link add lan1 netns tsb_router type veth peer name dev0 netns tsb_lan || return 1\n";
+		sh += "\tip -n tsb_router link set lan1 master lan0\n";
+		sh += "\tip link add wan0 netns tsb_router type veth peer name up0 netns tsb_wan || return 1\n";
+		sh += "\tip -n tsb_router addr add 198.51.100.1/24 dev wan0\n";
+		sh += "\tip -n tsb_wan addr add 198.51.100.2/24 dev up0\n";
+		sh += "\tawk '{ print \"addr add \" $2 \"/\" $3 \" dev lan0\" }' \"$work/devices\" | ip -n tsb_router -batch - || return 1\n";
+		sh += "\tawk '{ print \"addr add \" $1 \"/\" $3 \" dev dev0\" }' \"$work/devices\" | ip -n tsb_lan -batch - || return 1\n";
+		sh += "\tip -n tsb_router link set lan1 up\n";
+		sh += "\tip -n tsb_router link set lan0 up\n";
+		sh += "\tip -n tsb_router link set wan0 up\n";
+		sh += "\tip -n tsb_lan link set dev0 up\n";
+		sh += "\tip -n tsb_wan link set up0 up\n";
+		sh += "\tip -n tsb_lan route add default via $(awk 'NR == 1 { print $2 }' \"$work/devices\")\n";
+		sh += "\tip -n tsb_wan route add 10.0.0.0/8 via 198.51.100.1\n";
+		sh += "\tip netns exec tsb_router sysctl -qw net.ipv4.ip_forward=1\n";
+		sh += "}\n";
+		sh += "\n";
+		sh += "load_iptables() {\n";
+		sh += "\tip netns exec tsb_router ipset restore < \"$work/ipsets.conf\" || return 1\n";
+		sh += "\tip netns exec tsb_router iptables-restore < \"$work/iptables.conf\" || return 1\n";
+		sh += "\trules=$(ip netns exec tsb_router iptables-save | grep -c '^-A')\n";
+		sh += "}\n";
+		sh += "\n";
+		sh += "load_nftables() {\n";
+		sh += "\tip netns exec tsb_router nft -f \"$work/ruleset.nft\" || return 1\n";
+		sh += "\trules=$(ip netns exec tsb_router nft list ruleset | grep -c 'comment \"')\n";
+		sh += "}\n";
+		sh += "\n";
+		sh += "run() {\n";
+		sh += "\tlocal lines=$(wc -l < \"$work/devices\")\n";
+		sh += "\tlocal sources=$(awk -v n=$lines -v s=$streams 'BEGIN { for (i = 1; i <= s; ++i) pick[int((i * n) / s)] = 1 } NR in pick { print $1 }' \"$work/devices\")\n";
+		sh += "\n";
+		sh += "\tlocal port=5201\n";
+		sh += "\tfor source in $sources; do\n";
+		sh += "\t\tip netns exec tsb_wan iperf3 -s -D -1 -p $port\n";
+		sh += "\t\tport=$((port + 1))\n";
+		sh += "\tdone\n";
+		sh += "\tsleep 1\n";
+		sh += "\n";
+		//Only what makes it out of the far side counts
+		sh += "\tlocal before=$(ip netns exec tsb_router cat /sys/class/net/wan0/statistics/tx_packets)\n";
+		sh += "\tport=5201\n";
+		sh += "\tfor source in $sources; do\n";
+		sh += "\t\tip netns exec tsb_lan iperf3 -c 198.51.100.2 -p $port -B $source -M 88 -t $secs > /dev/null 2>&1 &\n";
+		sh += "\t\tport=$((port + 1))\n";
+		sh += "\tdone\n";
+		sh += "\twait\n";
+		sh += "\tlocal after=$(ip netns exec tsb_router cat /sys/class/net/wan0/statistics/tx_packets)\n";
+		sh += "\n";
+		sh += "\tlocal last=$(awk 'END { print $1 }' \"$work/devices\")\n";
+		sh += "\tlocal rtt=$(ip netns exec tsb_lan ping -q -c 100 -i 0.01 -I $last 198.51.100.2 | awk -F/ '/^rtt/ { print $5 \",\" $6 }')\n";
+		sh += "\n";
+		sh += "\techo \"$1,$2,$rules,$(( (after - before) / secs )),${rtt:--,-}\"\n";
+		sh += "}\n";
+		sh += "\n";
+		sh += "echo \"firewall,devices,rules,pps,rtt_avg_ms,rtt_max_ms\"\n";
+
+		return sh;
+	}
+}
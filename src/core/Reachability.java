@@ -0,0 +1,105 @@
+package core;
+
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.Vector;
+
+import core.model.MachineModel;
+import core.model.NetworkModel;
+import core.model.PacketClassifier;
+import core.model.ServerModel;
+import core.model.ThornsecModel;
+
+/**
+ * Generates a network's firewalls, without deploying them, and writes out which of its machines can reach which
+ * through each Router, so policy changes can be checked (or diffed) before they go anywhere near a machine.
+ *
+ * Once the matrices are written, each Router's classifier is timed over random flows between the network's machines.
+ *
+ * Matrices are written as CSV, one per network, Router, and protocol/port, e.g. mynet.router.tcp-443.csv.
+ * Verdicts which depended on something we couldn't evaluate (e.g. which interface a flow is on) end in a "?", and
+ * those to or from a machine without an address are just "?".
+ */
+public class Reachability {
+
+	private static final String[]  DEFAULT_PORTS = { "tcp/22", "tcp/80", "tcp/443", "udp/53" };
+	private static final Integer   FLOWS         = 1000000;
+
+	/**
+	 * @param args [0] - Path to our JSON,
+	 *             [1] - Where to write the matrices (default .),
+	 *             [2..] - Which ports to check, as protocol/port (default tcp/22 tcp/80 tcp/443 udp/53)
+	 * @throws Exception Cannot read the JSON, or write the matrices
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.out.println("Usage: Reachability network.json [output directory] [protocol/port...]");
+			System.exit(1);
+		}
+
+		String dir = (args.length > 1) ? args[1] : ".";
+
+		Vector<String> ports = new Vector<String>();
+		for (int i = 2; i < args.length; ++i) {
+			ports.add(args[i]);
+		}
+		if (ports.isEmpty()) {
+			for (String port : DEFAULT_PORTS) {
+				ports.add(port);
+			}
+		}
+
+		String text = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8)
+				.replaceAll("(?:/\\*(?:[^*]|(?:\\*+[^*/]))*\\*+/)|(?://.*)", "");
+
+		ThornsecModel model = new ThornsecModel();
+		model.read(text);
+		model.init();
+
+		for (String label : model.getNetworkLabels()) {
+			NetworkModel network = model.getNetworkModel(label);
+			Vector<MachineModel> machines = network.getAllMachines();
+
+			for (ServerModel router : network.getRouterServers()) {
+				PacketClassifier classifier = network.getClassifier(router.getLabel());
+
+				for (String port : ports) {
+					String[] split = port.split("/");
+					String path = Paths.get(dir, label + "." + router.getLabel() + "." + split[0] + "-" + split[1] + ".csv").toString();
+
+					try (Writer out = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8)) {
+						classifier.writeReachabilityMatrix(machines, split[0], Integer.parseInt(split[1]), out);
+					}
+
+					System.out.println("Written " + path);
+				}
+
+				if (!machines.isEmpty()) {
+					System.out.println(label + "." + router.getLabel() + ": " + getFlowsPerSecond(classifier, machines) + " flows per second");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Times the classifier over FLOWS random flows between machines, each to one of a handful of common ports
+	 */
+	private static long getFlowsPerSecond(PacketClassifier classifier, Vector<MachineModel> machines) {
+		Random random = new Random(0); //The same flows every time, so runs can be compared
+		int[] ports = { 22, 25, 53, 80, 443, 8080 };
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < FLOWS; ++i) {
+			MachineModel from = machines.elementAt(random.nextInt(machines.size()));
+			MachineModel to   = machines.elementAt(random.nextInt(machines.size()));
+
+			classifier.canReach(from, to, random.nextBoolean() ? "tcp" : "udp", ports[random.nextInt(ports.length)]);
+		}
+
+		return (FLOWS * 1000000000L) / Math.max(1, System.nanoTime() - start);
+	}
+}
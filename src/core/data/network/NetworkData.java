@@ -75,6 +75,9 @@ public class NetworkData extends AData {
 	private static final String DEFAULT_AUTOGENPASSWDS = "false";
 	private static final String DEFAULT_VPNONLY        = "false";
 	private static final String DEFAULT_AUTOGUEST      = "false";
+	private static final String DEFAULT_PARALLELGEN    = "false";
+	private static final String DEFAULT_FW_BACKEND     = "iptables";
+	private static final String DEFAULT_FLOW_OFFLOAD   = "false";
 	private static final String DEFAULT_THORNSECBASE   = "/srv/ThornSec";
 	private static final String DEFAULT_DEBIAN_ISO_DIR = "https://gensho.ftp.acc.umu.se/debian-cd/current/amd64/iso-cd/";
 	private static final String DEFAULT_DEBIANMIRROR   = "free.hands.com";
@@ -85,6 +88,13 @@ public class NetworkData extends AData {
 	private static final Integer DEFAULT_RAM          = 2048;
 	private static final Integer DEFAULT_CPUS         = 1;
 	
+	private static final Integer DEFAULT_AUDIT_CONCURRENCY = 4;
+	private static final Integer DEFAULT_AUDIT_TIMEOUT     = 600;
+	private static final Integer DEFAULT_CONFIG_JOBS       = 1;
+	
+	private static final Integer DEFAULT_RESOLVE_TIMEOUT   = 5;
+	private static final Integer DEFAULT_RESOLVE_CACHE_TTL = 86400;
+	
 	private static final Integer DEFAULT_SSH_PORT   = 65422;
 	private static final Integer DEFAULT_ADMIN_PORT = 65422;
 	
@@ -100,6 +110,17 @@ public class NetworkData extends AData {
 	private Boolean vpnOnly;
 	private Boolean dtls;
 	private Boolean autoGuest;
+	private Boolean parallelGeneration;
+	private String firewallBackend;
+	private Boolean flowOffload;
+	
+	private Integer auditConcurrency;
+	private Integer auditTimeout;
+	private Integer configJobs;
+	
+	private Integer resolveTimeout;
+	private Integer resolveCacheTTL;
+	private String offlineHosts;
 
 	private Set<IPAddress> upstreamDNS;
 	
@@ -123,6 +144,18 @@ public class NetworkData extends AData {
 		this.dtls           = null;
 		this.autoGuest      = null;
 		
+		this.parallelGeneration = null;
+		this.firewallBackend    = null;
+		this.flowOffload        = null;
+		
+		this.auditConcurrency = null;
+		this.auditTimeout     = null;
+		this.configJobs       = null;
+		
+		this.resolveTimeout  = null;
+		this.resolveCacheTTL = null;
+		this.offlineHosts    = null;
+		
 		this.upstreamDNS = null;
 		
 		this.defaultServiceData    = new ServiceData("");
@@ -156,6 +189,18 @@ public class NetworkData extends AData {
 			this.autoGenPasswds = Boolean.parseBoolean(data.getString("autogenpasswds", DEFAULT_AUTOGENPASSWDS));
 			this.vpnOnly        = Boolean.parseBoolean(data.getString("vpnonly", DEFAULT_VPNONLY));
 			this.autoGuest      = Boolean.parseBoolean(data.getString("autoguest", DEFAULT_AUTOGUEST));
+			
+			this.parallelGeneration = Boolean.parseBoolean(data.getString("parallelgeneration", DEFAULT_PARALLELGEN));
+			this.firewallBackend    = data.getString("firewallbackend", DEFAULT_FW_BACKEND);
+			this.flowOffload        = Boolean.parseBoolean(data.getString("flowoffload", DEFAULT_FLOW_OFFLOAD));
+			
+			this.auditConcurrency = getPositiveInt(data, "auditconcurrency", DEFAULT_AUDIT_CONCURRENCY);
+			this.auditTimeout     = getPositiveInt(data, "audittimeout", DEFAULT_AUDIT_TIMEOUT);
+			this.configJobs       = data.getInt("configjobs", DEFAULT_CONFIG_JOBS);
+			
+			this.resolveTimeout  = data.getInt("resolvetimeout", DEFAULT_RESOLVE_TIMEOUT);
+			this.resolveCacheTTL = data.getInt("resolvecachettl", DEFAULT_RESOLVE_CACHE_TTL);
+			this.offlineHosts    = data.getString("offlinehosts", null);
 
 			readServers(data.getJsonObject("servers"));
 			readInternalDevices(data.getJsonObject("internaldevices"));
@@ -164,6 +209,20 @@ public class NetworkData extends AData {
 		}
 	}
 
+	/**
+	 * Reads a property which has to be a whole number of at least 1, e.g. a count or a timeout
+	 */
+	private Integer getPositiveInt(JsonObject data, String property, Integer defaultValue)
+	throws InvalidPropertyException {
+		Integer value = data.getInt(property, defaultValue);
+		
+		if (value < 1) {
+			throw new InvalidPropertyException("\"" + property + "\" must be at least 1, but is " + value);
+		}
+		
+		return value;
+	}
+
 	private Set<IPAddress> getIPAddressArray(JsonObject data, String property)
 	throws UnknownHostException {
 		Set<IPAddress> addresses = new HashSet<IPAddress>();
@@ -269,6 +328,72 @@ public class NetworkData extends AData {
 		return this.autoGuest;
 	}
 	
+	/**
+	 * Should we build each machine's units concurrently, once networking is resolved?  This is only done if
+	 * every server's profiles are known to be safe to (see ParallelBuild), otherwise they're built one at a time.
+	 */
+	public final Boolean getParallelGeneration() {
+		return this.parallelGeneration;
+	}
+	
+	/**
+	 * Which firewall should we generate: "iptables" (with ipsets) or "nftables"?
+	 */
+	public final String getFirewallBackend() {
+		return this.firewallBackend;
+	}
+	
+	/**
+	 * Should Routers offload established connections to an nftables flowtable?
+	 * Offloaded traffic can't be counted, so Routers which do won't keep a bandwidth store.
+	 */
+	public final Boolean getFlowOffload() {
+		return this.flowOffload;
+	}
+	
+	/**
+	 * How many servers should we audit at once?
+	 */
+	public final Integer getAuditConcurrency() {
+		return this.auditConcurrency;
+	}
+	
+	/**
+	 * How long (in seconds) should we give a single server's audit before giving up on it?
+	 */
+	public final Integer getAuditTimeout() {
+		return this.auditTimeout;
+	}
+	
+	/**
+	 * How many long-running units (downloads, clones) may a server's config run in the background at once?
+	 * 1 means everything runs in order.
+	 */
+	public final Integer getConfigJobs() {
+		return this.configJobs;
+	}
+	
+	/**
+	 * How long (in seconds) should we wait on a single DNS lookup?
+	 */
+	public final Integer getResolveTimeout() {
+		return this.resolveTimeout;
+	}
+	
+	/**
+	 * How long (in seconds) should we trust a cached DNS lookup for?
+	 */
+	public final Integer getResolveCacheTTL() {
+		return this.resolveCacheTTL;
+	}
+	
+	/**
+	 * A hosts-style file to take every address from instead of DNS, or null to look them up
+	 */
+	public final String getOfflineHosts() {
+		return this.offlineHosts;
+	}
+	
 	/**
 	 * Should we autogenerate passwords for users who haven't set a default?
 	 */
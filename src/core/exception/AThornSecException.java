@@ -2,4 +2,12 @@ package core.exception;
 
 public abstract class AThornSecException extends Exception {
 	private static final long serialVersionUID = -428651404537657202L;
+
+	public AThornSecException() {
+		super();
+	}
+
+	public AThornSecException(String message) {
+		super(message);
+	}
 }
@@ -4,4 +4,12 @@ import core.exception.AThornSecException;
 
 public abstract class ADataException extends AThornSecException {
 	private static final long serialVersionUID = 7533173446854104304L;
+
+	public ADataException() {
+		super();
+	}
+
+	public ADataException(String message) {
+		super(message);
+	}
 }
@@ -2,4 +2,12 @@ package core.exception.data;
 
 public class InvalidPropertyException extends ADataException {
 	private static final long serialVersionUID = 2656177660603769643L;
+
+	public InvalidPropertyException() {
+		super();
+	}
+
+	public InvalidPropertyException(String message) {
+		super(message);
+	}
 }
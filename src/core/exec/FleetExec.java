@@ -0,0 +1,217 @@
+package core.exec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a ManageExec against a number of hosts at once, with a bounded number running concurrently.
+ *
+ * Each host's output is buffered separately, and only written out once that host has finished,
+ * so the output from different hosts never interleaves.
+ *
+ * Each host has the timeout from when it starts, for everything: building its ManageExec, uploading, and
+ * running.  Once that's up it's cancelled, and the summary carries on without it.
+ */
+public class FleetExec {
+
+	private static final Pattern SUMMARY = Pattern.compile("pass=([0-9]+) fail=([0-9]+)");
+
+	private ExecutorService pool;
+	private ScheduledExecutorService watchdog;
+	private Integer timeout;
+	private OutputStream out;
+
+	private LinkedHashMap<String, ByteArrayOutputStream> outputs;
+	private LinkedHashMap<String, Future<String>> results;
+
+	/**
+	 * @param concurrency Maximum number of hosts to run against at once
+	 * @param timeout     Per-host timeout, in seconds
+	 * @param out         Where to write each host's (complete) output, and the final summary
+	 */
+	public FleetExec(Integer concurrency, Integer timeout, OutputStream out) {
+		this.pool     = Executors.newFixedThreadPool(concurrency);
+		this.watchdog = Executors.newSingleThreadScheduledExecutor();
+		this.timeout  = timeout;
+		this.out      = out;
+
+		this.outputs = new LinkedHashMap<String, ByteArrayOutputStream>();
+		this.results = new LinkedHashMap<String, Future<String>>();
+	}
+
+	/**
+	 * Gets the buffer a given host's ManageExec should write its output to
+	 */
+	public synchronized OutputStream getOutputStream(String host) {
+		if (!outputs.containsKey(host)) {
+			outputs.put(host, new ByteArrayOutputStream());
+		}
+
+		return outputs.get(host);
+	}
+
+	/**
+	 * Queues a host to be run.  The ManageExec is built on the worker thread, so any
+	 * password lookups and script generation also happen concurrently.
+	 */
+	public synchronized void submit(final String host, final Callable<ManageExec> task) {
+		final ByteArrayOutputStream hostOut = (ByteArrayOutputStream) getOutputStream(host);
+
+		//Written out as soon as the host's decided, even if it's timed out and its thread is still stuck
+		final FutureTask<String> result = new FutureTask<String>(new Callable<String>() {
+			public String call() throws Exception {
+				return run(task.call());
+			}
+		}) {
+			protected void done() {
+				try {
+					writeOut("=======================" + host + ": " + getResult(this) + "==========================\n", hostOut);
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+
+		results.put(host, result);
+
+		pool.execute(new Runnable() {
+			public void run() {
+				//Cancelling interrupts us, which kills whichever ssh we're waiting on
+				ScheduledFuture<?> alarm = watchdog.schedule(new Runnable() {
+					public void run() {
+						result.cancel(true);
+					}
+				}, timeout, TimeUnit.SECONDS);
+
+				try {
+					result.run();
+				}
+				finally {
+					alarm.cancel(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops accepting new hosts, and writes out an aggregated pass/fail summary once they've all finished.
+	 * This doesn't block the caller.
+	 */
+	public synchronized void finish() {
+		//Queued behind every host, so each has started (and so has its timeout running) by the time we wait on it
+		pool.execute(new Runnable() {
+			public void run() {
+				try {
+					writeSummary();
+				}
+				finally {
+					watchdog.shutdown();
+				}
+			}
+		});
+
+		pool.shutdown();
+	}
+
+	private String run(ManageExec exec) {
+		if (exec == null) {
+			return "FAILED (couldn't connect)";
+		}
+
+		ProcessExec proc = exec.manage();
+
+		if (proc == null) {
+			return "FAILED (couldn't connect)";
+		}
+
+		proc.waitFor();
+
+		return "finished";
+	}
+
+	private String getResult(Future<String> result) {
+		try {
+			return result.get();
+		}
+		catch (CancellationException e) {
+			return "TIMED OUT after " + timeout + "s";
+		}
+		catch (InterruptedException | ExecutionException e) {
+			return "FAILED (" + e.getMessage() + ")";
+		}
+	}
+
+	private void writeOut(String header, ByteArrayOutputStream hostOut) throws IOException {
+		synchronized (out) {
+			out.write(header.getBytes(StandardCharsets.UTF_8));
+			hostOut.writeTo(out);
+			out.write("\n".getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+	}
+
+	private void writeSummary() {
+		String summary = "\n=======================Fleet summary==========================\n";
+		Integer passed = 0;
+		Integer failed = 0;
+
+		for (String host : results.keySet()) {
+			String result = getResult(results.get(host));
+
+			//The last pass/fail line in a host's output is its footer
+			Matcher matcher = SUMMARY.matcher(new String(outputs.get(host).toByteArray(), StandardCharsets.UTF_8));
+			String counts = null;
+			Integer fails = null;
+
+			while (matcher.find()) {
+				counts = matcher.group();
+				fails  = Integer.parseInt(matcher.group(2));
+			}
+
+			if (!result.equals("finished")) {
+				summary += "FAIL " + host + " (" + result + ")\n";
+				++failed;
+			}
+			else if (counts == null) {
+				summary += "FAIL " + host + " (didn't complete)\n";
+				++failed;
+			}
+			else if (fails > 0) {
+				summary += "FAIL " + host + " (" + counts + ")\n";
+				++failed;
+			}
+			else {
+				summary += "PASS " + host + " (" + counts + ")\n";
+				++passed;
+			}
+		}
+
+		summary += "Hosts: " + results.size() + ", passed: " + passed + ", failed: " + failed + "\n";
+
+		try {
+			synchronized (out) {
+				out.write(summary.getBytes(StandardCharsets.UTF_8));
+				out.flush();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
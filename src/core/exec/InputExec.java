@@ -2,28 +2,68 @@ package core.exec;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+/**
+ * Pumps a process' output into a sink, a buffer at a time.
+ *
+ * Buffers are pooled, and pumps are run on a shared pool of daemon threads rather than each
+ * getting its own Thread.  Writes to the sink block, so a slow sink pushes back on the process
+ * (via its pipe) rather than us queueing up its output in memory.
+ */
 class InputExec implements Runnable {
 
-	private InputStreamReader reader;
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+	private static final ExecutorService pumps = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "InputExec");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private InputStream stream;
 	private OutputStream writer;
 
 	InputExec(InputStream stream, OutputStream writer) {
+		this.stream = stream;
 		this.writer = writer;
-		reader = new InputStreamReader(stream);
+	}
+
+	/**
+	 * Starts pumping on the shared pool
+	 * @return a Future which completes once the stream has hit EOF
+	 */
+	Future<?> start() {
+		return pumps.submit(this);
 	}
 
 	public void run() {
+		byte[] buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = new byte[BUFFER_SIZE];
+		}
+
 		try {
-			int c = reader.read();
-			while (c != -1) {
-				writer.write(c);
-				c = reader.read();
+			int read = stream.read(buffer);
+			while (read != -1) {
+				writer.write(buffer, 0, read);
+				writer.flush();
+
+				read = stream.read(buffer);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			buffers.offer(buffer);
 		}
 	}
 
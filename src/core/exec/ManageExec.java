@@ -3,19 +3,24 @@ package core.exec;
 import java.io.OutputStream;
 import java.net.InetAddress;
 
+import core.iface.IScript;
+
 public class ManageExec {
 
+	//Unique, so we can tell when (and only when) sudo actually wants our password
+	private static final String SUDO_PROMPT = "thornsec_sudo_password:";
+
 	private InetAddress ip;
 	
 	private Integer port;
 
 	private String user;
-	private String cmd;
+	private IScript cmd;
 	private String password;
 	
 	private OutputStream out;
 
-	public ManageExec(String user, String password, InetAddress inetAddress, Integer port, String cmd, OutputStream out) {
+	public ManageExec(String user, String password, InetAddress inetAddress, Integer port, IScript cmd, OutputStream out) {
 		this.user = user;
 		this.ip = inetAddress;
 		this.port = port;
@@ -26,44 +31,21 @@ public class ManageExec {
 
 	public ProcessExec manage() {
 		try {
-			String sshConnect = "";
-			sshConnect += "ssh";
-			sshConnect += " -o ConnectTimeout=3";
-			sshConnect += " -o StrictHostKeyChecking=no";
-			sshConnect += " -o UserKnownHostsFile=/dev/null";
-			sshConnect += " -p " + this.port;
-			sshConnect += " " + this.user + "@" + this.ip;
-
-			String ttyConnect = "";
-			ttyConnect += "ssh";
-			ttyConnect += " -t -t";
-			ttyConnect += " -o ConnectTimeout=3";
-			ttyConnect += " -o StrictHostKeyChecking=no";
-			ttyConnect += " -o UserKnownHostsFile=/dev/null";
-			ttyConnect += " -p " + this.port;
-			ttyConnect += " " + this.user + "@" + this.ip;
+			SSHExec ssh = new SSHExec(this.user, this.ip, this.port);
 
-			String outputScript = "";
-			outputScript += " cat > script.sh;";
-			outputScript += " chmod +x script.sh;";
-			outputScript += " exit;";
+			ssh.upload(this.cmd, "script.sh", out);
 			
-			ProcessExec exec1 = new ProcessExec(sshConnect + outputScript, out, System.err);
-			exec1.writeAllClose(this.cmd.getBytes());
-			exec1.waitFor();
+			//We've been given up on, so don't start the script
+			if (Thread.currentThread().isInterrupted()) {
+				return null;
+			}
 			
 			String execScript = "";
-			execScript += " ./script.sh;";
+			execScript += " SUDO_PROMPT=" + SUDO_PROMPT + " ./script.sh;";
 			//execScript += " rm -rf script.sh;";
 			execScript += " exit;";
 			
-			ProcessExec exec2 = new ProcessExec(ttyConnect + execScript, out, System.err);
-			Thread.sleep(500);
-			
-			String pass = password + "\n";
-			exec2.writeAllOpen(pass.getBytes());
-			
-			return exec2;
+			return ssh.execute(execScript, out, SUDO_PROMPT, password);
 		}
 		catch (Exception e1) {
 			e1.printStackTrace();
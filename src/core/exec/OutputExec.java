@@ -1,5 +1,8 @@
 package core.exec;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
 class OutputExec {
 
 	private String cmd;
@@ -9,21 +12,17 @@ class OutputExec {
 	}
 
 	public String getOutput() {
-		String value = "";
+		ByteArrayOutputStream value = new ByteArrayOutputStream();
 		
 		try {
 			Process proc3 = Runtime.getRuntime().exec(cmd);
-			int read = proc3.getInputStream().read();
-			while (read != -1) {
-				value += (char) read;
-				read = proc3.getInputStream().read();
-			}
+			new InputExec(proc3.getInputStream(), value).run();
 		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
 		
-		return value;
+		return new String(value.toByteArray(), StandardCharsets.UTF_8);
 	}
 
 }
@@ -1,31 +1,81 @@
 package core.exec;
 
+import java.io.BufferedWriter;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import core.iface.IScript;
 
 class ProcessExec {
 
 	private Process proc;
+	
+	private Future<?> inpump;
+	private Future<?> errpump;
 
 	ProcessExec(String cmd, OutputStream out, OutputStream err) {
+		this(cmd, out, err, null, null);
+	}
+
+	/**
+	 * Runs a command, writing the response to its input every time the prompt appears in its output
+	 */
+	ProcessExec(String cmd, OutputStream out, OutputStream err, String prompt, String response) {
 		try {
 			proc = Runtime.getRuntime().exec(cmd);
-			InputExec procin = new InputExec(proc.getInputStream(), out);
-			Thread inthread = new Thread(procin);
-			inthread.start();
-			InputExec procerr = new InputExec(proc.getErrorStream(), err);
-			Thread errthread = new Thread(procerr);
-			errthread.start();
+			if (prompt != null) {
+				out = new PromptOutputStream(out, prompt, response, proc.getOutputStream());
+			}
+			inpump = new InputExec(proc.getInputStream(), out).start();
+			errpump = new InputExec(proc.getErrorStream(), err).start();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Waits for the process (and its output) to finish.  If we're interrupted, nothing's waiting for it any
+	 * more, so it's killed.
+	 */
 	void waitFor() {
 		try {
 			proc.waitFor();
+			inpump.get();
+			errpump.get();
 		} catch (InterruptedException e) {
+			proc.destroyForcibly();
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Waits for the process (and its output) to finish, up to the given timeout
+	 * @return true if the process exited, false if we timed out
+	 */
+	boolean waitFor(long timeout, TimeUnit unit) {
+		try {
+			if (!proc.waitFor(timeout, unit)) {
+				return false;
+			}
+			inpump.get();
+			errpump.get();
+		} catch (InterruptedException | ExecutionException e) {
 			e.printStackTrace();
+			return false;
 		}
+		
+		return true;
+	}
+
+	void destroy() {
+		proc.destroyForcibly();
 	}
 
 	void writeAllOpen(byte[] bytes) {
@@ -47,4 +97,15 @@ class ProcessExec {
 		}
 	}
 
+	void writeAllClose(IScript script) {
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream(), StandardCharsets.UTF_8));
+			script.write(writer);
+			writer.flush();
+			writer.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
 }
@@ -0,0 +1,61 @@
+package core.exec;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Passes a process' output straight through, but watches it for a given prompt.
+ * Every time the prompt is seen, the response is written to the process' input.
+ */
+class PromptOutputStream extends FilterOutputStream {
+
+	private byte[] prompt;
+	private byte[] response;
+	private OutputStream responseTo;
+
+	private int matched;
+
+	PromptOutputStream(OutputStream out, String prompt, String response, OutputStream responseTo) {
+		super(out);
+
+		this.prompt     = prompt.getBytes(StandardCharsets.UTF_8);
+		this.response   = (response + "\n").getBytes(StandardCharsets.UTF_8);
+		this.responseTo = responseTo;
+
+		this.matched = 0;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		int start = off;
+
+		for (int i = off; i < off + len; ++i) {
+			if (b[i] == prompt[matched]) {
+				++matched;
+			}
+			else {
+				matched = (b[i] == prompt[0]) ? 1 : 0;
+			}
+
+			if (matched == prompt.length) {
+				matched = 0;
+
+				out.write(b, start, i + 1 - start);
+				out.flush();
+				start = i + 1;
+
+				responseTo.write(response);
+				responseTo.flush();
+			}
+		}
+
+		out.write(b, start, off + len - start);
+	}
+}
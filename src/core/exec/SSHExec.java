@@ -0,0 +1,76 @@
+package core.exec;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+import core.iface.IScript;
+
+/**
+ * Our SSH transport to a given host.
+ *
+ * Every connection goes through an OpenSSH ControlMaster socket, which is kept alive for
+ * a while after we're done with it.  This means the upload and execution of a script share
+ * a single authenticated session, and repeated runs against the same host skip the handshake.
+ */
+class SSHExec {
+
+	private static final String CONTROL_PATH    = "~/.ssh/thornsec-%r@%h:%p";
+	private static final String CONTROL_PERSIST = "10m";
+
+	private String user;
+	private InetAddress ip;
+	private Integer port;
+
+	SSHExec(String user, InetAddress ip, Integer port) {
+		this.user = user;
+		this.ip   = ip;
+		this.port = port;
+	}
+
+	/**
+	 * Streams a script to the given path on the host, and makes it executable
+	 */
+	ProcessExec upload(IScript script, String path, OutputStream out) {
+		String cmd = "";
+		cmd += getConnect(false);
+		cmd += " cat > " + path + ";";
+		cmd += " chmod +x " + path + ";";
+		cmd += " exit;";
+
+		ProcessExec exec = new ProcessExec(cmd, out, System.err);
+		exec.writeAllClose(script);
+		exec.waitFor();
+
+		return exec;
+	}
+
+	/**
+	 * Runs a command on the host over a TTY, answering the given prompt with the given response
+	 * whenever it's seen in the output
+	 */
+	ProcessExec execute(String remoteCmd, OutputStream out, String prompt, String response) {
+		String cmd = "";
+		cmd += getConnect(true);
+		cmd += " " + remoteCmd;
+
+		return new ProcessExec(cmd, out, System.err, prompt, response);
+	}
+
+	private String getConnect(boolean tty) {
+		String connect = "";
+		connect += "ssh";
+		if (tty) {
+			connect += " -t -t";
+		}
+		connect += " -o ConnectTimeout=3";
+		connect += " -o StrictHostKeyChecking=no";
+		connect += " -o UserKnownHostsFile=/dev/null";
+		connect += " -o ControlMaster=auto";
+		connect += " -o ControlPath=" + CONTROL_PATH;
+		connect += " -o ControlPersist=" + CONTROL_PERSIST;
+		connect += " -p " + this.port;
+		connect += " " + this.user + "@" + this.ip.getHostAddress();
+
+		return connect;
+	}
+}
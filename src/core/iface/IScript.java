@@ -0,0 +1,10 @@
+package core.iface;
+
+import java.io.IOException;
+import java.io.Writer;
+
+public interface IScript {
+
+	public void write(Writer out) throws IOException;
+
+}
\ No newline at end of file
@@ -1,13 +1,22 @@
 package core.iface;
 
+import java.io.IOException;
+
 public interface IUnit  {
 	
 	public String getLabel();
 
-	public String genAudit(boolean quiet);
+	public String getPrecondition();
+
+	/**
+	 * Is this unit slow enough (downloads, clones) that it's worth running in the background while configuring?
+	 */
+	public boolean isLongRunning();
+
+	public void genAudit(Appendable out, boolean quiet) throws IOException;
 
-	public String genConfig();
+	public void genConfig(Appendable out) throws IOException;
 
-	public String genDryRun();
+	public void genDryRun(Appendable out) throws IOException;
 
 }
\ No newline at end of file
@@ -37,9 +37,16 @@ public class ConfigFileModel extends AModel {
 	}
 
 	public IUnit addConfigFile(String name, String precondition, String config, String path, String message) {
+		return addConfigFile(name, precondition, config, path, message, false);
+	}
+	
+	/**
+	 * Adds a config file, optionally audited by hash (see FileUnit).  Use this for anything big.
+	 */
+	public IUnit addConfigFile(String name, String precondition, String config, String path, String message, boolean hash) {
 		addConfigFilePath(path);
 		
-		return new FileUnit(name + "_config", precondition, config, path, message);
+		return new FileUnit(name + "_config", precondition, config, path, message, hash);
 	}
 	
 	public IUnit addConfigFile(String name, String precondition, String config, String path) {
@@ -18,9 +18,12 @@ public class DeviceModel extends MachineModel {
 	public Vector<IUnit> getNetworking() {
 		InterfaceModel im = getInterfaceModel();
 
+		//Each device gets its own /24, so after the first 254 we spill over into the next /16
+		int index = networkModel.getAllDevices().indexOf(this);
+		
 		super.setFirstOctet(10);
-		super.setSecondOctet(50);
-		super.setThirdOctet(networkModel.getAllDevices().indexOf(this) + 1);
+		super.setSecondOctet(50 + (index / 254));
+		super.setThirdOctet((index % 254) + 1);
 		
 		int i = 0;
 		
@@ -63,8 +66,10 @@ public class DeviceModel extends MachineModel {
 		return getNetworkData().getDeviceIsManaged(getLabel());
 	}
 	
-	public Set<Integer> getManagementPorts() {
-		return getNetworkData().getDevicePorts(getLabel());
+	public PortSet getManagementPorts() {
+		Set<Integer> ports = getNetworkData().getDevicePorts(getLabel());
+		
+		return (ports == null) ? null : new PortSet(ports);
 	}
 
 	@Override
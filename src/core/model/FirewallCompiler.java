@@ -0,0 +1,197 @@
+package core.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Vector;
+
+/**
+ * Tidies up a chain's rules before they're written out, so there are fewer rules for the kernel to walk.
+ *
+ * In order, it:
+ *  - drops duplicate rules (ones which only differ in their comment), where they're next to each other or an
+ *    earlier copy is an ACCEPT/DROP/REJECT.  A MARK or jump repeated further on may undo whatever came between.
+ *  - merges neighbouring rules which only differ in their ports, as long as they still fit in one multiport match
+ *  - drops rules which can never be hit, as an earlier ACCEPT/DROP/REJECT matches everything they do
+ *  - (for iptables) splits port lists which are longer than multiport allows
+ *
+ * It never reorders rules, and never touches rules it doesn't fully understand, so a chain still means exactly what it did.
+ */
+class FirewallCompiler {
+
+	//Ranges count as two
+	private static final Integer MULTIPORT_MAX = 15;
+
+	private Integer in;
+	private Integer out;
+	private Integer duplicates;
+	private Integer merged;
+	private Integer shadowed;
+	private Integer split;
+
+	FirewallCompiler() {
+		this.in         = 0;
+		this.out        = 0;
+		this.duplicates = 0;
+		this.merged     = 0;
+		this.shadowed   = 0;
+		this.split      = 0;
+	}
+
+	/**
+	 * @param rules      A chain's rules, in the order they're evaluated
+	 * @param multiport  Split port lists to fit iptables' multiport?
+	 * @return the compiled rules, in the order they're evaluated
+	 */
+	Vector<FirewallRule> compile(Vector<FirewallRule> rules, boolean multiport) {
+		in += rules.size();
+
+		Vector<FirewallRule> compiled = dropDuplicates(rules);
+		compiled = merge(compiled);
+		compiled = dropShadowed(compiled);
+
+		if (multiport) {
+			compiled = split(compiled);
+		}
+
+		out += compiled.size();
+
+		return compiled;
+	}
+
+	private Vector<FirewallRule> dropDuplicates(Vector<FirewallRule> rules) {
+		Vector<FirewallRule> unique = new Vector<FirewallRule>();
+		HashSet<FirewallRule> terminal = new HashSet<FirewallRule>();
+
+		for (FirewallRule rule : rules) {
+			FirewallRule previous = unique.isEmpty() ? null : unique.lastElement();
+
+			//Anything after a terminal copy can never be hit.  Otherwise, only a copy straight after itself does
+			//nothing, as long as we understand it and it isn't limited (each copy of a limit has its own allowance)
+			boolean repeated = rule.equals(previous) && rule.isParsed() && !rule.getMatches().containsKey("--limit");
+
+			if (terminal.contains(rule) || repeated) {
+				++duplicates;
+				continue;
+			}
+
+			unique.add(rule);
+
+			if (rule.isTerminal()) {
+				terminal.add(rule);
+			}
+		}
+
+		return unique;
+	}
+
+	private Vector<FirewallRule> merge(Vector<FirewallRule> rules) {
+		Vector<FirewallRule> merged = new Vector<FirewallRule>();
+
+		for (FirewallRule rule : rules) {
+			FirewallRule previous = merged.isEmpty() ? null : merged.lastElement();
+
+			if (previous != null && previous.getPorts() != null && previous.isTerminal() && previous.isCompatible(rule)
+					//! --dports a followed by ! --dports b isn't ! --dports a,b
+					&& !previous.getPortsKey().startsWith("!")) {
+				LinkedHashSet<String> ports = new LinkedHashSet<String>(previous.getPorts());
+				ports.addAll(rule.getPorts());
+
+				if (getSize(ports) > MULTIPORT_MAX) {
+					merged.add(rule);
+					continue;
+				}
+
+				String comment = previous.getComment();
+				if (!comment.contains(rule.getComment())) {
+					comment += "; " + rule.getComment();
+				}
+
+				merged.set(merged.size() - 1, new FirewallRule(previous, new Vector<String>(ports), comment));
+				++this.merged;
+			}
+			else {
+				merged.add(rule);
+			}
+		}
+
+		return merged;
+	}
+
+	private Vector<FirewallRule> dropShadowed(Vector<FirewallRule> rules) {
+		Vector<FirewallRule> reachable = new Vector<FirewallRule>();
+
+		for (FirewallRule rule : rules) {
+			boolean isShadowed = false;
+
+			for (FirewallRule earlier : reachable) {
+				if (earlier.isTerminal() && earlier.covers(rule)) {
+					isShadowed = true;
+					break;
+				}
+			}
+
+			if (isShadowed && !rule.isDispatch()) {
+				++shadowed;
+			}
+			else {
+				reachable.add(rule);
+			}
+		}
+
+		return reachable;
+	}
+
+	private Vector<FirewallRule> split(Vector<FirewallRule> rules) {
+		Vector<FirewallRule> split = new Vector<FirewallRule>();
+
+		for (FirewallRule rule : rules) {
+			//Negated lists can't be split either, so leave them for iptables to complain about
+			if (rule.getPorts() == null || getSize(rule.getPorts()) <= MULTIPORT_MAX || rule.getPortsKey().startsWith("!")) {
+				split.add(rule);
+				continue;
+			}
+
+			Vector<String> chunk = new Vector<String>();
+			Integer size = 0;
+
+			for (String port : rule.getPorts()) {
+				Integer portSize = getSize(Arrays.asList(port));
+
+				if (size + portSize > MULTIPORT_MAX) {
+					split.add(new FirewallRule(rule, chunk, rule.getComment()));
+					++this.split;
+
+					chunk = new Vector<String>();
+					size  = 0;
+				}
+
+				chunk.add(port);
+				size += portSize;
+			}
+
+			split.add(new FirewallRule(rule, chunk, rule.getComment()));
+		}
+
+		return split;
+	}
+
+	private static Integer getSize(Collection<String> ports) {
+		Integer size = 0;
+
+		for (String port : ports) {
+			size += port.contains(":") ? 2 : 1;
+		}
+
+		return size;
+	}
+
+	/**
+	 * @return how many rules have been removed, over everything compiled so far
+	 */
+	String getReport() {
+		return "compiled " + in + " firewall rules to " + out
+				+ " (" + duplicates + " duplicates, " + merged + " merged, " + shadowed + " unreachable, " + split + " added by splitting port lists)";
+	}
+}
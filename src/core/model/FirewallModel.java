@@ -1,7 +1,8 @@
 package core.model;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.Vector;
 
 import core.StringUtils;
@@ -15,35 +16,58 @@ import core.unit.pkg.InstalledUnit;
 
 public class FirewallModel extends AModel {
 
-	private LinkedHashMap<String, LinkedHashMap<String, Vector<String>>> iptTables;
+	/**
+	 * The nftables table our ruleset lives in
+	 */
+	public static final String NFT_TABLE = NftablesRenderer.TABLE;
+
+	private LinkedHashMap<String, LinkedHashMap<String, Vector<FirewallRule>>> iptTables;
+	
+	private LinkedHashMap<String, String> dispatch;
+	
+	private Vector<String> offloadIfaces;
+	private Vector<String> offloadExcluded;
+	
+	private Vector<String> counted;
+	
+	private FirewallCompiler compiler;
 
 	FirewallModel(String label, ServerModel me, NetworkModel networkModel) {
 		super(label, me, networkModel);
 
 		iptTables = new LinkedHashMap<>();
+		
+		dispatch = new LinkedHashMap<String, String>();
+		
+		offloadIfaces   = null;
+		offloadExcluded = new Vector<String>();
+		
+		counted = new Vector<String>();
+		
+		compiler = new FirewallCompiler();
 
-		iptTables.put("mangle", new LinkedHashMap<String, Vector<String>>());
-		iptTables.put("nat", new LinkedHashMap<String, Vector<String>>());
-		iptTables.put("filter", new LinkedHashMap<String, Vector<String>>());
+		iptTables.put("mangle", new LinkedHashMap<String, Vector<FirewallRule>>());
+		iptTables.put("nat", new LinkedHashMap<String, Vector<FirewallRule>>());
+		iptTables.put("filter", new LinkedHashMap<String, Vector<FirewallRule>>());
 
-		LinkedHashMap<String, Vector<String>> mangleTable = iptTables.get("mangle");
-		LinkedHashMap<String, Vector<String>> natTable    = iptTables.get("nat");
-		LinkedHashMap<String, Vector<String>> filterTable = iptTables.get("filter");
+		LinkedHashMap<String, Vector<FirewallRule>> mangleTable = iptTables.get("mangle");
+		LinkedHashMap<String, Vector<FirewallRule>> natTable    = iptTables.get("nat");
+		LinkedHashMap<String, Vector<FirewallRule>> filterTable = iptTables.get("filter");
 
-		mangleTable.put("PREROUTING", new Vector<String>());
-		mangleTable.put("INPUT", new Vector<String>());
-		mangleTable.put("FORWARD", new Vector<String>());
-		mangleTable.put("OUTPUT", new Vector<String>());
-		mangleTable.put("POSTROUTING", new Vector<String>());
+		mangleTable.put("PREROUTING", new Vector<FirewallRule>());
+		mangleTable.put("INPUT", new Vector<FirewallRule>());
+		mangleTable.put("FORWARD", new Vector<FirewallRule>());
+		mangleTable.put("OUTPUT", new Vector<FirewallRule>());
+		mangleTable.put("POSTROUTING", new Vector<FirewallRule>());
 		
-		natTable.put("PREROUTING", new Vector<String>());
-		natTable.put("INPUT", new Vector<String>());
-		natTable.put("OUTPUT", new Vector<String>());
-		natTable.put("POSTROUTING", new Vector<String>());
+		natTable.put("PREROUTING", new Vector<FirewallRule>());
+		natTable.put("INPUT", new Vector<FirewallRule>());
+		natTable.put("OUTPUT", new Vector<FirewallRule>());
+		natTable.put("POSTROUTING", new Vector<FirewallRule>());
 
-		filterTable.put("INPUT", new Vector<String>());
-		filterTable.put("FORWARD", new Vector<String>());
-		filterTable.put("OUTPUT", new Vector<String>());
+		filterTable.put("INPUT", new Vector<FirewallRule>());
+		filterTable.put("FORWARD", new Vector<FirewallRule>());
+		filterTable.put("OUTPUT", new Vector<FirewallRule>());
 
 		this.addFilterInput("iptables_in_tcp", "-p tcp -j ACCEPT", "Allow inbound TCP");
 		this.addFilterInput("iptables_in_udp", "-p udp -j ACCEPT", "Allow inbound UDP");
@@ -63,7 +87,17 @@ public class FirewallModel extends AModel {
 	 * 
 	 * @return Configuration units
 	 */
-	public Vector<IUnit> getUnits() {
+	public synchronized Vector<IUnit> getUnits() {
+		compiler = new FirewallCompiler();
+		
+		if (networkModel.getData().getFirewallBackend().equals("nftables")) {
+			return getNftUnits();
+		}
+		
+		if (offloadIfaces != null) {
+			System.out.println(me.getLabel() + ": flow offloading needs the nftables firewall backend, so won't be done.");
+		}
+		
 		Vector<IUnit> units = new Vector<IUnit>();
 		
 		//Need to do IPSet stuff up here, as iptables now relies on it
@@ -94,63 +128,224 @@ public class FirewallModel extends AModel {
 		units.addElement(new FileUnit("iptables_conf_shell_script", "iptables_dir_created", iptablesConfSh, "/etc/iptables/iptables.conf.sh"));
 		units.addElement(new FilePermsUnit("iptables_conf_shell_script", "iptables_conf_shell_script", "/etc/iptables/iptables.conf.sh", "750"));
 		
-		units.addElement(new SimpleUnit("iptables_running_conf_backup", "iptables_dir_created",
-				"echo 'iptables-save > /etc/iptables/iptables.conf.bak' | sudo bash",
-				"find /etc/iptables/iptables.conf.bak -cmin -1 2>&1", "/etc/iptables/iptables.conf.bak", "pass",
-				"Couldn't take a backup of the currently running iptables rules.  I won't apply the new ones as a precaution."));
+		//Takes its own backup, but only when there's something to apply
+		units.addElement(new FileUnit("iptables_apply_shell_script", "iptables_dir_created", getApplyScript(), "/etc/iptables/iptables.apply.sh"));
+		units.addElement(new FilePermsUnit("iptables_apply_shell_script", "iptables_apply_shell_script", "/etc/iptables/iptables.apply.sh", "750"));
+		
 		units.addElement(new SimpleUnit("ipset_running_conf_backup", "iptables_dir_created",
 				"echo 'ipset save > /etc/ipsets/ipset.conf.bak' | sudo bash",
 				"find /etc/ipsets/ipset.conf.bak -cmin -1 2>&1", "/etc/ipsets/ipset.conf.bak", "pass",
 				"Couldn't take a backup of the currently running ipset rules.  I won't apply the new ones as a precaution."));
 		
-		String manglePolicies = "";
-		manglePolicies += "*mangle\n";
-		manglePolicies += ":PREROUTING ACCEPT [0:0]\n";
-		manglePolicies += ":INPUT ACCEPT [0:0]\n";
-		manglePolicies += ":FORWARD ACCEPT [0:0]\n";
-		manglePolicies += ":OUTPUT ACCEPT [0:0]\n";
-		manglePolicies += ":POSTROUTING ACCEPT [0:0]";
-		units.addElement(new FileUnit("iptables_mangle_policies", "iptables_dir_created", manglePolicies, "/etc/iptables/iptables.mangle.policies.conf"));
+		units.addElement(new FileUnit("iptables_mangle_policies", "iptables_dir_created", getManglePolicies(), "/etc/iptables/iptables.mangle.policies.conf"));
 		units.addElement(new CustomFileUnit("iptables_mangle_custom", "iptables_dir_created", "/etc/iptables/iptables.mangle.custom.conf"));
 		units.addElement(new FileUnit("iptables_mangle_forward", "iptables_dir_created", getMangleForward(), "/etc/iptables/iptables.mangle.forward.conf"));
 
-		String natPreRoutingPolicy = "";
-		natPreRoutingPolicy += "COMMIT\n";
-		natPreRoutingPolicy += "*nat\n";
-		natPreRoutingPolicy += ":PREROUTING ACCEPT [0:0]";
-		units.addElement(new FileUnit("iptables_nat_prerouting_policy", "iptables_dir_created", natPreRoutingPolicy, "/etc/iptables/iptables.nat.prerouting.policies.conf"));
+		units.addElement(new FileUnit("iptables_nat_prerouting_policy", "iptables_dir_created", getNatPreroutingPolicies(), "/etc/iptables/iptables.nat.prerouting.policies.conf"));
 		units.addElement(new CustomFileUnit("iptables_nat_prerouting_rules_custom", "iptables_dir_created",	"/etc/iptables/iptables.nat.prerouting.custom.conf"));
 		units.addElement(new FileUnit("iptables_nat_prerouting_rules", "iptables_dir_created", getNatPrerouting(), "/etc/iptables/iptables.nat.prerouting.rules.conf"));
 
-		String natPostRoutingPolicies = "";
-		natPostRoutingPolicies += ":INPUT ACCEPT [0:0]\n";
-		natPostRoutingPolicies += ":OUTPUT ACCEPT [0:0]\n";
-		natPostRoutingPolicies += ":POSTROUTING ACCEPT [0:0]";
-		units.addElement(new FileUnit("iptables_nat_postrouting_policy", "iptables_dir_created", natPostRoutingPolicies, "/etc/iptables/iptables.nat.postrouting.policies.conf"));
+		units.addElement(new FileUnit("iptables_nat_postrouting_policy", "iptables_dir_created", getNatPostroutingPolicies(), "/etc/iptables/iptables.nat.postrouting.policies.conf"));
 		units.addElement(new CustomFileUnit("iptables_nat_postrouting_rules_custom", "iptables_dir_created","/etc/iptables/iptables.nat.postrouting.custom.conf"));
 		units.addElement(new FileUnit("iptables_nat_postrouting_rules", "iptables_dir_created", getNatPostrouting(), "/etc/iptables/iptables.nat.postrouting.rules.conf"));
 		
-		String filterPolicies = "";
-		filterPolicies += "COMMIT\n";
-		filterPolicies += "*filter\n";
-		filterPolicies += ":INPUT ACCEPT [0:0]\n";
-		filterPolicies += ":FORWARD ACCEPT [0:0]\n";
-		filterPolicies += ":OUTPUT ACCEPT [0:0]";
-		units.addElement(new FileUnit("iptables_filter_policy", "iptables_dir_created", filterPolicies, "/etc/iptables/iptables.filter.policies.conf"));
+		units.addElement(new FileUnit("iptables_filter_policy", "iptables_dir_created", getFilterPolicies(), "/etc/iptables/iptables.filter.policies.conf"));
 		units.addElement(new CustomFileUnit("iptables_filter_rules_custom", "iptables_dir_created", "/etc/iptables/iptables.filter.custom.conf"));
-		units.addElement(new FileUnit("iptables_filter_rules", "iptables_dir_created", getFilter(), "/etc/iptables/iptables.filter.rules.conf"));
+		//Every other table's been compiled by now, so the compiler's report covers the lot
+		units.addElement(new FileUnit("iptables_filter_rules", "iptables_dir_created", getFilter() + "\n#" + compiler.getReport(), "/etc/iptables/iptables.filter.rules.conf",
+				"Couldn't create /etc/iptables/iptables.filter.rules.conf.  This is a pretty serious problem!", true));
+
+		//Passes once every chain on the machine matches what we've generated
+		units.addElement(new SimpleUnit("iptables_conf_persist", "iptables_apply_shell_script_chmoded",
+				"sudo /etc/iptables/iptables.apply.sh;",
+				"sudo /etc/iptables/iptables.apply.sh check", "", "pass",
+				"Couldn't apply your firewall rules.  Check the rules in /etc/iptables, and the output of /etc/iptables/iptables.apply.sh"));
+		
+		return units;
+	}
+	
+	/**
+	 * Applies only the chains whose rules have changed since they were last applied, with iptables-restore --noflush.
+	 * Chains are hashed as they're assembled on the machine, so changes to the custom files are picked up too.
+	 * Each chain's live rules (as iptables-save prints them) are hashed once it's applied as well, so a chain which
+	 * has been changed or flushed behind our back is reapplied, and fails the check.
+	 * 
+	 * The hashes live under /run, so everything is reapplied once after a reboot.
+	 */
+	private String getApplyScript() {
+		String sh = "";
+		sh += "#!/bin/bash\n";
+		sh += "#Applies only the chains which have changed since they were last applied.\n";
+		sh += "#With \\\"check\\\", just lists them instead.\n";
+		sh += "cd /etc/iptables/\n";
+		sh += "state=/run/thornsec/iptables\n";
+		sh += "mkdir -p \\$state\n";
+		sh += "conf=\\$(./iptables.conf.sh)\n";
+		sh += "changed=\\\"\\\"\n";
+		sh += "payload=\\\"\\\"\n";
+		sh += "for table in mangle nat filter; do\n";
+		sh += "    live=\\$(iptables-save -t \\$table 2>/dev/null)\n";
+		sh += "    rules=\\$(echo \\\"\\$conf\\\" | awk -v t=\\\"*\\$table\\\" '/^\\\\*/ { in_table = (\\$0 == t); next } in_table && /^(:|-A )/')\n";
+		sh += "    declare=\\\"\\\"\n";
+		sh += "    flush=\\\"\\\"\n";
+		sh += "    append=\\\"\\\"\n";
+		sh += "    for chain in \\$(echo \\\"\\$rules\\\" | awk '/^:/ { print substr(\\$1, 2) }'); do\n";
+		sh += "        chain_rules=\\$(echo \\\"\\$rules\\\" | awk -v c=\\\"\\$chain\\\" '\\$1 == \\\":\\\" c || (\\$1 == \\\"-A\\\" && \\$2 == c)')\n";
+		sh += "        hash=\\$(echo \\\"\\$chain_rules\\\" | sha256sum | cut -d' ' -f1)\n";
+		sh += "        live_hash=\\$(echo \\\"\\$live\\\" | awk -v c=\\\"\\$chain\\\" '\\$1 == \\\"-A\\\" && \\$2 == c' | sha256sum | cut -d' ' -f1)\n";
+		sh += "        if iptables -w -t \\$table -n -L \\$chain > /dev/null 2>&1 && [ \\\"\\$hash \\$live_hash\\\" = \\\"\\$(cat \\$state/\\$table.\\$chain 2>/dev/null)\\\" ]; then\n";
+		sh += "            continue\n";
+		sh += "        fi\n";
+		sh += "        changed=\\\"\\$changed \\$table.\\$chain:\\$hash\\\"\n";
+		sh += "        declare=\\\"\\$declare\\$(echo \\\"\\$chain_rules\\\" | grep '^:')\\\"\\$'\\\\n'\n";
+		sh += "        flush=\\\"\\$flush-F \\$chain\\\"\\$'\\\\n'\n";
+		sh += "        append=\\\"\\$append\\$(echo \\\"\\$chain_rules\\\" | grep '^-A ')\\\"\\$'\\\\n'\n";
+		sh += "    done\n";
+		sh += "    if [ -n \\\"\\$declare\\\" ]; then\n";
+		sh += "        payload=\\\"\\$payload*\\$table\\\"\\$'\\\\n'\\\"\\$declare\\$flush\\$append\\\"'COMMIT'\\$'\\\\n'\n";
+		sh += "    fi\n";
+		sh += "done\n";
+		sh += "if [ \\\"\\$1\\\" = \\\"check\\\" ]; then\n";
+		sh += "    for chain in \\$changed; do\n";
+		sh += "        echo \\\"\\${chain%%:*} has changed\\\"\n";
+		sh += "    done\n";
+		sh += "    exit 0\n";
+		sh += "fi\n";
+		sh += "[ -z \\\"\\$changed\\\" ] && exit 0\n";
+		sh += "iptables-save > iptables.conf.bak\n";
+		sh += "echo \\\"\\$payload\\\" | grep -v '^\\$' | iptables-restore --test --noflush || exit 1\n";
+		sh += "echo \\\"\\$payload\\\" | grep -v '^\\$' | iptables-restore --noflush || exit 1\n";
+		sh += "for chain in \\$changed; do\n";
+		sh += "    name=\\${chain%%:*}\n";
+		sh += "    live_hash=\\$(iptables-save -t \\${name%%.*} | awk -v c=\\\"\\${name#*.}\\\" '\\$1 == \\\"-A\\\" && \\$2 == c' | sha256sum | cut -d' ' -f1)\n";
+		sh += "    echo \\\"\\${chain#*:} \\$live_hash\\\" > \\$state/\\$name\n";
+		sh += "done";
+		
+		return sh;
+	}
+	
+	/**
+	 * Gets the firewall configuration units, for an nftables firewall.
+	 * Our ipsets become named sets in the same table, so are loaded in the same transaction.
+	 * 
+	 * @return Configuration units
+	 */
+	private Vector<IUnit> getNftUnits() {
+		Vector<IUnit> units = new Vector<IUnit>();
+		
+		units.addElement(new InstalledUnit("nftables", "proceed", "nftables", "I was unable to install your firewall. This is bad."));
 
-		//This needs child units back.  I should get 'round to fixing that.
-		//Hardcode fail for now...
-		units.addElement(new SimpleUnit("iptables_conf_persist", "iptables_running_conf_backup",
-				"sudo /etc/iptables/iptables.conf.sh | sudo iptables-restore --test"
+		units.addElement(new DirUnit("nftables_dir", "proceed", "/etc/nftables"));
+		
+		units.addElement(new SimpleUnit("nftables_running_conf_backup", "nftables_dir_created",
+				"echo 'nft list ruleset > /etc/nftables/ruleset.bak' | sudo bash",
+				"find /etc/nftables/ruleset.bak -cmin -1 2>&1", "/etc/nftables/ruleset.bak", "pass",
+				"Couldn't take a backup of the currently running nftables rules.  I won't apply the new ones as a precaution."));
+		
+		NftablesRenderer renderer = getNftRenderer();
+		
+		units.addElement(new CustomFileUnit("nftables_custom", "nftables_dir_created", "/etc/nftables/thornsec.custom.nft"));
+		units.addElement(new FileUnit("nftables_ruleset", "nftables_dir_created",
+				renderer.render() + "\n#" + compiler.getReport() + "\ninclude \\\"/etc/nftables/thornsec.custom.nft\\\"",
+				"/etc/nftables/thornsec.nft",
+				"Couldn't create /etc/nftables/thornsec.nft.  This is a pretty serious problem!", true));
+
+		//Our files and our live table (less its counters) are hashed once loaded, so changing either reloads it.
+		//The hash lives under /run, so it's reloaded once after a reboot
+		String loaded = "{ sudo cat /etc/nftables/thornsec.nft /etc/nftables/thornsec.custom.nft; sudo nft -s list table ip " + NftablesRenderer.TABLE + "; } 2>&1"
+				+ " | sha256sum | cut -d' ' -f1";
+		
+		units.addElement(new SimpleUnit("nftables_conf_persist", "nftables_running_conf_backup",
+				"sudo nft -c -f /etc/nftables/thornsec.nft"
 				+ " &&"
-				+ " sudo /etc/iptables/iptables.conf.sh | sudo iptables-restore;",
-				"echo 'This is a hardcoded fail for now. Don\t worry!'", "", "pass"));
+				+ " sudo nft -f /etc/nftables/thornsec.nft"
+				+ " &&"
+				+ " sudo mkdir -p /run/thornsec"
+				+ " &&"
+				+ " " + loaded + " | sudo tee /run/thornsec/nftables > /dev/null;",
+				"[ \"$(" + loaded + ")\" = \"$(cat /run/thornsec/nftables 2>/dev/null)\" ] && echo loaded", "loaded", "pass",
+				"Couldn't load your firewall rules.  Check the rules in /etc/nftables, and the output of nft -c -f /etc/nftables/thornsec.nft"));
 		
 		return units;
 	}
 	
+	private NftablesRenderer getNftRenderer() {
+		return new NftablesRenderer(me.getLabel(), getCompiledTables(compiler), dispatch, networkModel.getIPSet().getNftSets(),
+				offloadIfaces, offloadExcluded, counted);
+	}
+	
+	/**
+	 * Gets the whole nftables ruleset (less any custom rules), for nft -f.
+	 * Like everything else we write out, it's escaped for echo.
+	 */
+	public synchronized String getNftRuleset() {
+		compiler = new FirewallCompiler();
+		
+		return getNftRenderer().render();
+	}
+	
+	/**
+	 * Offloads established connections between the given interfaces to an nftables flowtable, so the rest of
+	 * their packets skip our chains.  Only has any effect with the nftables backend.
+	 */
+	public synchronized void setFlowOffload(Collection<String> ifaces) {
+		ParallelBuild.checkWrite(me.getLabel(), me.getLabel() + "'s firewall");
+		
+		offloadIfaces = new Vector<String>(ifaces);
+	}
+	
+	/**
+	 * Keeps connections from a subnet out of the flowtable, for when something later in the connection
+	 * still needs to see every packet (e.g. QoS marking once it's uploaded enough)
+	 */
+	public synchronized void addFlowOffloadExclusion(String subnet) {
+		ParallelBuild.checkWrite(me.getLabel(), me.getLabel() + "'s firewall");
+		
+		if (!offloadExcluded.contains(subnet)) {
+			offloadExcluded.add(subnet);
+		}
+	}
+	
+	/**
+	 * Counts the traffic going through a filter chain in a named counter of the same name, so it can be read
+	 * (and zeroed) along with every other with a single nft reset counters.  iptables counts every rule already,
+	 * so this only has any effect with the nftables backend.
+	 */
+	public synchronized void addChainCounter(String chain) {
+		ParallelBuild.checkWrite(me.getLabel(), me.getLabel() + "'s firewall");
+		
+		chain = StringUtils.stringToAlphaNumeric(chain, "_");
+		
+		if (!counted.contains(chain)) {
+			counted.add(chain);
+		}
+	}
+	
+	/**
+	 * Sends all forwarded traffic to or from a machine's subnet to its chain.
+	 * With iptables this is a pair of FORWARD rules per machine; with nftables, an entry in a verdict map.
+	 */
+	public synchronized void addForwardDispatch(String name, String subnet, String chain, String hostname) {
+		ParallelBuild.checkWrite(me.getLabel(), me.getLabel() + "'s firewall");
+		
+		chain = StringUtils.stringToAlphaNumeric(chain, "_");
+		
+		add(name + "_ipt_server_src", "filter", "FORWARD",
+				"-s " + subnet + " -j " + chain,
+				"Force any internal traffic coming from " + hostname + " to its own chain").setDispatch(true);
+		add(name + "_ipt_server_dst", "filter", "FORWARD",
+				"-d " + subnet + " -j " + chain,
+				"Force any internal traffic going to " + hostname + " to its own chain").setDispatch(true);
+		
+		if (!dispatch.containsKey(subnet)) {
+			dispatch.put(subnet, chain);
+		}
+		//The same chain asking again is fine; it's only a conflict if another chain wants the subnet
+		else if (!dispatch.get(subnet).equals(chain)) {
+			System.out.println(me.getLabel() + ": both " + dispatch.get(subnet) + " and " + chain + " want traffic for " + subnet + ". Only " + dispatch.get(subnet) + " will get it with nftables.");
+		}
+	}
+	
 	public void addFilterInput(String name, String rule, String comment) {
 		add(name, "filter", "INPUT", rule, comment);
 	}
@@ -183,19 +378,21 @@ public class FirewallModel extends AModel {
 		add(name, "mangle", "FORWARD", rule, comment);
 	}
 
-	public SimpleUnit addChain(String name, String table, String chain) {
+	public synchronized SimpleUnit addChain(String name, String table, String chain) {
+		ParallelBuild.checkWrite(me.getLabel(), me.getLabel() + "'s firewall");
+		
 		chain = StringUtils.stringToAlphaNumeric(chain, "_");
 		table = StringUtils.stringToAlphaNumeric(table, "_");
 		
-		LinkedHashMap<String, Vector<String>> tab = iptTables.get(table);
+		LinkedHashMap<String, Vector<FirewallRule>> tab = iptTables.get(table);
 		
 		if (tab == null) {
-			iptTables.put(table, new LinkedHashMap<String, Vector<String>>());
+			iptTables.put(table, new LinkedHashMap<String, Vector<FirewallRule>>());
 		}
 		tab = iptTables.get(table);
-		Vector<String> ch = tab.get(chain);
+		Vector<FirewallRule> ch = tab.get(chain);
 		if (ch == null) {
-			tab.put(chain, new Vector<String>());
+			tab.put(chain, new Vector<FirewallRule>());
 		}
 		return new SimpleUnit(name + "_chain", "proceed", "echo \\\"handled by model\\\";",
 				"cat /etc/iptables/iptables.conf | iptables-xml | xsltproc --stringparam table " + table
@@ -203,7 +400,9 @@ public class FirewallModel extends AModel {
 				":" + chain + " - [0:0]", "pass");
 	}
 
-	private void add(String name, String table, String chain, int position, String rule, String comment) {
+	private synchronized FirewallRule add(String name, String table, String chain, int position, String rule, String comment) {
+		ParallelBuild.checkWrite(me.getLabel(), me.getLabel() + "'s firewall");
+		
 		chain = StringUtils.stringToAlphaNumeric(chain, "_");
 		table = StringUtils.stringToAlphaNumeric(table, "_");
 		
@@ -211,18 +410,82 @@ public class FirewallModel extends AModel {
 			comment = "This is probably important, but there is no associated comment - sorry!";
 		}
 		
-		rule += " -m comment --comment \\\"" + comment + "\\\"";
+		FirewallRule parsed = FirewallRule.parse(rule, comment);
 		
-		this.getChain(table, chain).add(position, rule);
+		this.getChain(table, chain).add(position, parsed);
+		
+		return parsed;
 	}
 
-	private void add(String name, String table, String chain, String rule, String comment) {
+	private synchronized FirewallRule add(String name, String table, String chain, String rule, String comment) {
 		chain = StringUtils.stringToAlphaNumeric(chain, "_");
 		table = StringUtils.stringToAlphaNumeric(table, "_");
 		
 		int position = this.getChain(table, chain).size();
 		
-		add(name, table, chain, position, rule, comment);
+		return add(name, table, chain, position, rule, comment);
+	}
+
+	private String getManglePolicies() {
+		String policies = "";
+		policies += "*mangle\n";
+		policies += ":PREROUTING ACCEPT [0:0]\n";
+		policies += ":INPUT ACCEPT [0:0]\n";
+		policies += ":FORWARD ACCEPT [0:0]\n";
+		policies += ":OUTPUT ACCEPT [0:0]\n";
+		policies += ":POSTROUTING ACCEPT [0:0]";
+		
+		return policies;
+	}
+	
+	private String getNatPreroutingPolicies() {
+		String policies = "";
+		policies += "COMMIT\n";
+		policies += "*nat\n";
+		policies += ":PREROUTING ACCEPT [0:0]";
+		
+		return policies;
+	}
+	
+	private String getNatPostroutingPolicies() {
+		String policies = "";
+		policies += ":INPUT ACCEPT [0:0]\n";
+		policies += ":OUTPUT ACCEPT [0:0]\n";
+		policies += ":POSTROUTING ACCEPT [0:0]";
+		
+		return policies;
+	}
+	
+	private String getFilterPolicies() {
+		String policies = "";
+		policies += "COMMIT\n";
+		policies += "*filter\n";
+		policies += ":INPUT ACCEPT [0:0]\n";
+		policies += ":FORWARD ACCEPT [0:0]\n";
+		policies += ":OUTPUT ACCEPT [0:0]";
+		
+		return policies;
+	}
+	
+	/**
+	 * Gets the whole ruleset as iptables.conf.sh would assemble it (less any custom rules), for iptables-restore.
+	 * Like everything else we write out, it's escaped for echo.
+	 */
+	public synchronized String getIptablesRestore() {
+		compiler = new FirewallCompiler();
+		
+		String restore = "";
+		restore += getManglePolicies() + "\n";
+		restore += getMangleForward() + "\n";
+		restore += getNatPreroutingPolicies() + "\n";
+		restore += getNatPrerouting() + "\n";
+		restore += getNatPostroutingPolicies() + "\n";
+		restore += getNatPostrouting() + "\n";
+		restore += getFilterPolicies() + "\n";
+		restore += getFilter() + "\n";
+		restore += "COMMIT";
+		
+		return restore.replaceAll("\n+", "\n");
 	}
 
 	private String getNatPostrouting() {
@@ -241,19 +504,17 @@ public class FirewallModel extends AModel {
 		chain = StringUtils.stringToAlphaNumeric(chain, "_");
 		table = StringUtils.stringToAlphaNumeric(table, "_");
 		
-		Vector<String> ch = new Vector<String>(new LinkedHashSet<String>(this.getChain(table, chain)));
-
 		String rules = "";
 		
-		for (int i = ch.size() - 1; i >= 0; --i) { //Loop through backwards
-			rules += "\n-A " + chain +  " " + ch.elementAt(i);
+		for (FirewallRule rule : compile(table, chain, true, compiler)) {
+			rules += "\n-A " + chain +  " " + rule.toIptables();
 		}
 		
 		return rules;
 	}
 	
 	private String getFilter() {
-		LinkedHashMap<String, Vector<String>> filterTable = iptTables.get("filter");
+		LinkedHashMap<String, Vector<FirewallRule>> filterTable = iptTables.get("filter");
 
 		String policies = "";
 		String filters  = "";
@@ -262,20 +523,47 @@ public class FirewallModel extends AModel {
 			if (!policy.equals("INPUT") && !policy.equals("FORWARD") && !policy.equals("OUTPUT"))
 				policies += ":" + policy + " - [0:0]\n";
 			
-			Vector<String> chain = new Vector<String>(new LinkedHashSet<String>(this.getChain("filter", policy)));
-
-			for (int i = chain.size() - 1; i >= 0; --i) { //Loop through backwards
-				filters += "\n-A " + policy +  " " + chain.elementAt(i);
+			for (FirewallRule rule : compile("filter", policy, true, compiler)) {
+				filters += "\n-A " + policy +  " " + rule.toIptables();
 			}
 		}
 		return policies + filters;
 	}
+	
+	/**
+	 * Gets a chain's rules, in the order they're evaluated, after they've been through the compiler.
+	 * 
+	 * @param multiport Split port lists to fit iptables' multiport?
+	 */
+	private Vector<FirewallRule> compile(String table, String chain, boolean multiport, FirewallCompiler compiler) {
+		Vector<FirewallRule> rules = new Vector<FirewallRule>(this.getChain(table, chain));
+		Collections.reverse(rules); //Rules are stored backwards
+		
+		return compiler.compile(rules, multiport);
+	}
+	
+	/**
+	 * Gets every chain's compiled rules, in the order they're evaluated.
+	 * Port lists aren't split, as nothing but iptables has a limit on them.
+	 */
+	synchronized LinkedHashMap<String, LinkedHashMap<String, Vector<FirewallRule>>> getCompiledTables(FirewallCompiler compiler) {
+		LinkedHashMap<String, LinkedHashMap<String, Vector<FirewallRule>>> compiled = new LinkedHashMap<String, LinkedHashMap<String, Vector<FirewallRule>>>();
+		
+		for (String table : iptTables.keySet()) {
+			compiled.put(table, new LinkedHashMap<String, Vector<FirewallRule>>());
+			for (String chain : iptTables.get(table).keySet()) {
+				compiled.get(table).put(chain, compile(table, chain, false, compiler));
+			}
+		}
+		
+		return compiled;
+	}
 
-	private Vector<String> getChain(String table, String chain) {
+	private Vector<FirewallRule> getChain(String table, String chain) {
 		chain = StringUtils.stringToAlphaNumeric(chain, "_");
 		table = StringUtils.stringToAlphaNumeric(table, "_");
 		
-		Vector<String> ch = iptTables.get(table).get(chain);
+		Vector<FirewallRule> ch = iptTables.get(table).get(chain);
 		if (ch == null) {
 			addChain("auto_create_chain_" + chain, table, chain);
 		}
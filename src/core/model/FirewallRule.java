@@ -0,0 +1,403 @@
+package core.model;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Vector;
+
+/**
+ * A single firewall rule: what it matches, where it sends matching traffic, and why.
+ *
+ * Rules are still handed to FirewallModel as iptables arguments, and parsed into this.  Anything we don't
+ * understand is kept as-is, and never touched by the compiler.
+ *
+ * Matches are keyed by their iptables option, with a "! " prefix where they're negated, so two rules match
+ * the same traffic if their matches are equal.
+ */
+public class FirewallRule {
+
+	private LinkedHashMap<String, String> matches;
+	private Vector<String> ports;
+	private String portsKey;
+
+	private String target;
+	private LinkedHashMap<String, String> targetOptions;
+
+	private String comment;
+	private String raw;
+
+	private boolean dispatch;
+
+	private FirewallRule() {
+		this.matches       = new LinkedHashMap<String, String>();
+		this.ports         = null;
+		this.portsKey      = null;
+		this.target        = null;
+		this.targetOptions = new LinkedHashMap<String, String>();
+		this.comment       = null;
+		this.raw           = null;
+		this.dispatch      = false;
+	}
+
+	/**
+	 * A copy of the given rule, with different ports and comment
+	 */
+	FirewallRule(FirewallRule rule, Vector<String> ports, String comment) {
+		this();
+
+		this.matches.putAll(rule.matches);
+		this.ports    = ports;
+		this.portsKey = rule.portsKey;
+		this.target   = rule.target;
+		this.targetOptions.putAll(rule.targetOptions);
+		this.comment  = comment;
+		this.raw      = rule.raw;
+		this.dispatch = rule.dispatch;
+	}
+
+	/**
+	 * Parses a rule, as iptables arguments
+	 * @param rule    iptables arguments, escaped for echo
+	 * @param comment Why this rule exists
+	 */
+	public static FirewallRule parse(String rule, String comment) {
+		FirewallRule parsed = new FirewallRule();
+		parsed.comment = comment;
+
+		Vector<String> tokens = tokenise(rule);
+		boolean negate = false;
+
+		for (int i = 0; i < tokens.size(); ++i) {
+			String token = tokens.elementAt(i);
+			String next  = (i + 1 < tokens.size()) ? tokens.elementAt(i + 1) : null;
+			String not   = negate ? "! " : "";
+
+			if (token.equals("!")) {
+				negate = true;
+				continue;
+			}
+			negate = false;
+
+			if (token.equals("-m") || token.equals("--match")) {
+				++i; //Modules are implied by their options
+				continue;
+			}
+
+			if (token.equals("--clamp-mss-to-pmtu")) {
+				parsed.targetOptions.put(token, "");
+				continue;
+			}
+
+			if (next == null) {
+				return parseFailed(rule, comment);
+			}
+
+			switch (token) {
+				case "-p":
+				case "--protocol":
+					parsed.matches.put(not + "-p", next);
+					break;
+				case "-s":
+				case "--source":
+					parsed.matches.put(not + "-s", next);
+					break;
+				case "-d":
+				case "--destination":
+					parsed.matches.put(not + "-d", next);
+					break;
+				case "-i":
+				case "--in-interface":
+					parsed.matches.put(not + "-i", next);
+					break;
+				case "-o":
+				case "--out-interface":
+					parsed.matches.put(not + "-o", next);
+					break;
+				case "--dport":
+				case "--dports":
+				case "--destination-ports":
+				case "--sport":
+				case "--sports":
+				case "--source-ports":
+					if (parsed.ports != null) {
+						return parseFailed(rule, comment);
+					}
+					parsed.portsKey = not + (token.startsWith("--d") ? "--dports" : "--sports");
+					parsed.ports    = new Vector<String>(new LinkedHashSet<String>(Arrays.asList(next.split(","))));
+					break;
+				case "--match-set":
+					if (i + 2 >= tokens.size()) {
+						return parseFailed(rule, comment);
+					}
+					parsed.matches.put(not + "--match-set", next + " " + tokens.elementAt(i + 2));
+					++i;
+					break;
+				case "--state":
+				case "--ctstate":
+					parsed.matches.put(not + "--state", next);
+					break;
+				case "--connbytes":
+				case "--connbytes-dir":
+				case "--connbytes-mode":
+				case "--limit":
+					parsed.matches.put(not + token, next);
+					break;
+				case "--tcp-flags":
+					if (i + 2 >= tokens.size()) {
+						return parseFailed(rule, comment);
+					}
+					parsed.matches.put(not + "--tcp-flags", next + " " + tokens.elementAt(i + 2));
+					++i;
+					break;
+				case "--mss":
+					parsed.matches.put(not + "--mss", next);
+					break;
+				case "--comment":
+					//Ours is passed in separately
+					break;
+				case "-j":
+				case "--jump":
+					parsed.target = next;
+					break;
+				case "--log-prefix":
+				case "--to-destination":
+				case "--to-source":
+				case "--set-mark":
+				case "--set-mss":
+					parsed.targetOptions.put(token, next);
+					break;
+				default:
+					return parseFailed(rule, comment);
+			}
+
+			++i; //Everything above takes exactly one argument
+		}
+
+		return parsed;
+	}
+
+	private static FirewallRule parseFailed(String rule, String comment) {
+		FirewallRule parsed = new FirewallRule();
+		parsed.raw     = rule;
+		parsed.comment = comment;
+
+		return parsed;
+	}
+
+	/**
+	 * Splits iptables arguments.  Quoted arguments (either "..." or \"...\", as our rules are
+	 * escaped for echo) are kept whole, with their quotes removed.
+	 */
+	private static Vector<String> tokenise(String rule) {
+		Vector<String> tokens = new Vector<String>();
+		int i = 0;
+
+		while (i < rule.length()) {
+			if (Character.isWhitespace(rule.charAt(i))) {
+				++i;
+			}
+			else if (rule.startsWith("\\\"", i)) {
+				int end = rule.indexOf("\\\"", i + 2);
+				end = (end == -1) ? rule.length() : end;
+				tokens.add(rule.substring(i + 2, end));
+				i = end + 2;
+			}
+			else if (rule.charAt(i) == '"') {
+				int end = rule.indexOf('"', i + 1);
+				end = (end == -1) ? rule.length() : end;
+				tokens.add(rule.substring(i + 1, end));
+				i = end + 1;
+			}
+			else {
+				int end = i;
+				while (end < rule.length() && !Character.isWhitespace(rule.charAt(end))) {
+					++end;
+				}
+				tokens.add(rule.substring(i, end));
+				i = end;
+			}
+		}
+
+		return tokens;
+	}
+
+	/**
+	 * @return whether we understood this rule.  If not, it can only be written back out as it came in.
+	 */
+	public boolean isParsed() {
+		return raw == null;
+	}
+
+	public LinkedHashMap<String, String> getMatches() {
+		return matches;
+	}
+
+	/**
+	 * @return "--dports", "--sports" (maybe with "! "), or null if this rule doesn't match on ports
+	 */
+	public String getPortsKey() {
+		return portsKey;
+	}
+
+	public Vector<String> getPorts() {
+		return ports;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public String getTargetOption(String option) {
+		return targetOptions.get(option);
+	}
+
+	public String getComment() {
+		return comment;
+	}
+
+	/**
+	 * @return whether this rule sends traffic on to a machine's own chain
+	 */
+	public boolean isDispatch() {
+		return dispatch;
+	}
+
+	void setDispatch(boolean dispatch) {
+		this.dispatch = dispatch;
+	}
+
+	/**
+	 * @return whether nothing after this rule in its chain will see traffic it matches
+	 */
+	boolean isTerminal() {
+		//Traffic over a limit falls through
+		if (!isParsed() || target == null || matches.containsKey("--limit")) {
+			return false;
+		}
+
+		return target.equals("ACCEPT") || target.equals("DROP") || target.equals("REJECT");
+	}
+
+	/**
+	 * @return whether this rule matches the same traffic, with the same target, as another (ignoring ports and comments)
+	 */
+	boolean isCompatible(FirewallRule rule) {
+		return isParsed() && rule.isParsed()
+				&& matches.equals(rule.matches)
+				&& Objects.equals(portsKey, rule.portsKey)
+				&& Objects.equals(target, rule.target)
+				&& targetOptions.equals(rule.targetOptions);
+	}
+
+	/**
+	 * @return whether every packet the other rule matches is also matched by this one
+	 */
+	boolean covers(FirewallRule rule) {
+		if (!isParsed() || !rule.isParsed()) {
+			return false;
+		}
+
+		for (String key : matches.keySet()) {
+			if (!matches.get(key).equals(rule.matches.get(key))) {
+				return false;
+			}
+		}
+
+		if (ports != null) {
+			if (!portsKey.equals(rule.portsKey) || portsKey.startsWith("!")) {
+				return false;
+			}
+			if (!ports.containsAll(rule.ports)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the rule as iptables arguments, escaped for echo
+	 */
+	public String toIptables() {
+		if (!isParsed()) {
+			return raw + getIptablesComment();
+		}
+
+		String rule = "";
+
+		for (String key : matches.keySet()) {
+			String option = key.replace("! ", "");
+			String not    = key.startsWith("!") ? "! " : "";
+			String value  = matches.get(key);
+
+			switch (option) {
+				case "--match-set":
+					rule += " -m set " + not + "--match-set " + value;
+					break;
+				case "--state":
+					rule += " -m state " + not + "--state " + value;
+					break;
+				case "--connbytes":
+					rule += " -m connbytes " + not + "--connbytes " + value;
+					break;
+				case "--limit":
+					rule += " -m limit --limit " + value;
+					break;
+				case "--mss":
+					rule += " -m tcpmss " + not + "--mss " + value;
+					break;
+				default:
+					rule += " " + not + option + " " + value;
+			}
+		}
+
+		if (ports != null) {
+			String not = portsKey.startsWith("!") ? "! " : "";
+			String key = portsKey.replace("! ", "");
+
+			if (ports.size() == 1) {
+				rule += " " + not + key.substring(0, key.length() - 1) + " " + ports.firstElement();
+			}
+			else {
+				rule += " -m multiport " + not + key + " " + String.join(",", ports);
+			}
+		}
+
+		if (target != null) {
+			rule += " -j " + target;
+		}
+
+		for (String option : targetOptions.keySet()) {
+			String value = targetOptions.get(option);
+			rule += " " + option + (value.isEmpty() ? "" : " ") + (option.equals("--log-prefix") ? "\\\"" + value + "\\\"" : value);
+		}
+
+		return rule.trim() + getIptablesComment();
+	}
+
+	private String getIptablesComment() {
+		return " -m comment --comment \\\"" + comment + "\\\"";
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof FirewallRule)) {
+			return false;
+		}
+
+		FirewallRule rule = (FirewallRule) o;
+
+		return Objects.equals(raw, rule.raw)
+				&& matches.equals(rule.matches)
+				&& Objects.equals(portsKey, rule.portsKey)
+				&& Objects.equals(ports, rule.ports)
+				&& Objects.equals(target, rule.target)
+				&& targetOptions.equals(rule.targetOptions);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(raw, matches, portsKey, ports, target, targetOptions);
+	}
+}
@@ -0,0 +1,358 @@
+package core.model;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JOptionPane;
+
+import inet.ipaddr.IPAddressString;
+
+/**
+ * Resolves the hostnames our firewall rules refer to, to their IPv4 addresses.
+ *
+ * Lookups are kept in an on-disk cache, so regenerating doesn't have to wait on DNS every time, and a batch of
+ * hostnames can be looked up concurrently, each with its own timeout from when it's started.
+ *
+ * In offline mode nothing is looked up at all.  Addresses come from a hosts-style file instead
+ * ("address hostname [hostname...]" per line), so generation is fast and reproducible without a network.
+ */
+public class HostResolver {
+
+	private static final Integer LOOKUP_THREADS = 16;
+
+	private String cachePath;
+	private String offlinePath;
+	private Integer timeout;
+	private Integer ttl;
+
+	private ConcurrentHashMap<String, InetAddress[]> resolved;
+	private ConcurrentHashMap<String, Long> expiries;
+	private LinkedHashMap<String, Vector<InetAddress>> offline;
+
+	/**
+	 * @param cachePath   Where to keep the cache
+	 * @param timeout     How long to wait on a single lookup, in seconds
+	 * @param ttl         How long a cached lookup is good for, in seconds
+	 * @param offlinePath A hosts-style file to use instead of DNS, or null
+	 */
+	public HostResolver(String cachePath, Integer timeout, Integer ttl, String offlinePath) {
+		this.cachePath   = cachePath;
+		this.offlinePath = offlinePath;
+		this.timeout     = timeout;
+		this.ttl         = ttl;
+
+		this.resolved = new ConcurrentHashMap<String, InetAddress[]>();
+		this.expiries = new ConcurrentHashMap<String, Long>();
+		this.offline  = null;
+
+		if (offlinePath != null) {
+			readOffline();
+		}
+		else {
+			readCache();
+		}
+	}
+
+	/**
+	 * Looks up everything in hosts which isn't already cached, all at once.  Anything which can't be resolved,
+	 * and has never been cached, is fatal.
+	 */
+	public void prefetch(Collection<String> hosts) {
+		if (offline != null) {
+			return;
+		}
+
+		LinkedHashSet<String> pending = new LinkedHashSet<String>();
+
+		for (String host : hosts) {
+			if (host != null && !isLiteral(host) && !isFresh(host)) {
+				pending.add(host);
+			}
+		}
+
+		Vector<String> failed = lookupAll(pending);
+
+		if (!pending.isEmpty()) {
+			writeCache();
+		}
+
+		if (!failed.isEmpty()) {
+			JOptionPane.showMessageDialog(null, "I couldn't resolve " + String.join(", ", failed) + ". They may be invalid addresses, or you're currently offline. Please check your network connection and try again.");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return host's IPv4 addresses, from the cache if we can
+	 */
+	public InetAddress[] resolve(String host) {
+		if (host == null) {
+			return null;
+		}
+
+		if (isLiteral(host)) {
+			return lookup(host);
+		}
+
+		if (offline != null) {
+			Vector<InetAddress> addresses = offline.get(host.toLowerCase());
+
+			if (addresses == null) {
+				JOptionPane.showMessageDialog(null, host + " isn't in " + offlinePath + ". Please add it, or turn offline mode off.");
+				System.exit(1);
+			}
+
+			return addresses.toArray(new InetAddress[addresses.size()]);
+		}
+
+		if (!isFresh(host)) {
+			if (!lookupAll(Collections.singleton(host)).isEmpty()) {
+				JOptionPane.showMessageDialog(null, host + " appears to be an invalid address, or you're currently offline. Please check your network connection and try again.");
+				System.exit(1);
+			}
+
+			writeCache();
+		}
+
+		return resolved.get(host);
+	}
+
+	private boolean isLiteral(String host) {
+		return new IPAddressString(host).isIPAddress();
+	}
+
+	private boolean isFresh(String host) {
+		Long expiry = expiries.get(host);
+
+		return (expiry != null && expiry > System.currentTimeMillis());
+	}
+
+	private Callable<InetAddress[]> getLookup(final String host) {
+		return new Callable<InetAddress[]>() {
+			public InetAddress[] call() throws UnknownHostException {
+				ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
+
+				for (InetAddress ip : Inet4Address.getAllByName(host)) {
+					if (ip instanceof Inet4Address) {
+						addresses.add(ip);
+					}
+				}
+
+				return addresses.toArray(new InetAddress[addresses.size()]);
+			}
+		};
+	}
+
+	private InetAddress[] lookup(String host) {
+		try {
+			return getLookup(host).call();
+		}
+		catch (Exception e) {
+			JOptionPane.showMessageDialog(null, host + " appears to be an invalid address. Please check it and try again.");
+			System.exit(1);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Looks up hosts, LOOKUP_THREADS at a time.  Each batch gets threads of its own, so every lookup starts as
+	 * soon as it's submitted, and its timeout runs from then.  A lookup which hangs can't be interrupted, but it
+	 * is left behind rather than holding up the hosts after it.
+	 *
+	 * @return the hosts we have no addresses for
+	 */
+	private Vector<String> lookupAll(Collection<String> hosts) {
+		Vector<String> queue  = new Vector<String>(hosts);
+		Vector<String> failed = new Vector<String>();
+
+		for (int i = 0; i < queue.size(); i += LOOKUP_THREADS) {
+			List<String> batch = queue.subList(i, Math.min(i + LOOKUP_THREADS, queue.size()));
+			List<Callable<InetAddress[]>> tasks = new ArrayList<Callable<InetAddress[]>>();
+
+			for (String host : batch) {
+				tasks.add(getLookup(host));
+			}
+
+			ExecutorService pool = Executors.newFixedThreadPool(batch.size(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "resolver");
+					thread.setDaemon(true); //A hung lookup shouldn't stop us from exiting
+					return thread;
+				}
+			});
+
+			try {
+				List<Future<InetAddress[]>> lookups = pool.invokeAll(tasks, timeout, TimeUnit.SECONDS);
+
+				for (int j = 0; j < batch.size(); ++j) {
+					if (!collect(batch.get(j), lookups.get(j))) {
+						failed.add(batch.get(j));
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				for (String host : batch) {
+					if (!resolved.containsKey(host)) {
+						failed.add(host);
+					}
+				}
+			}
+			finally {
+				pool.shutdownNow();
+			}
+		}
+
+		return failed;
+	}
+
+	/**
+	 * Caches a finished (or timed out) lookup's result.  If it failed but we've resolved this host before,
+	 * the old addresses are used (with a warning).
+	 *
+	 * @return whether we have addresses for host
+	 */
+	private boolean collect(String host, Future<InetAddress[]> lookup) {
+		try {
+			resolved.put(host, lookup.get());
+			expiries.put(host, System.currentTimeMillis() + (ttl * 1000L));
+
+			return true;
+		}
+		catch (InterruptedException | ExecutionException | CancellationException e) {
+			if (resolved.containsKey(host)) {
+				System.out.println("Couldn't resolve " + host + " (" + e + "), so using the addresses it had when it was last resolved");
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Cache lines are "hostname expiry address[,address...]"
+	 */
+	private void readCache() {
+		Path path = Paths.get(cachePath);
+
+		if (!Files.exists(path)) {
+			return;
+		}
+
+		try {
+			for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+				String[] fields = line.trim().split(" ");
+
+				if (fields.length < 2) {
+					continue;
+				}
+
+				Vector<InetAddress> addresses = new Vector<InetAddress>();
+
+				if (fields.length > 2) {
+					for (String address : fields[2].split(",")) {
+						addresses.add(InetAddress.getByName(address));
+					}
+				}
+
+				resolved.put(fields[0], addresses.toArray(new InetAddress[addresses.size()]));
+				expiries.put(fields[0], Long.parseLong(fields[1]));
+			}
+		}
+		catch (IOException | NumberFormatException e) {
+			System.out.println("Couldn't read the DNS cache at " + cachePath + ", so everything will be looked up again (" + e + ")");
+			resolved.clear();
+			expiries.clear();
+		}
+	}
+
+	private synchronized void writeCache() {
+		List<String> lines = new ArrayList<String>();
+
+		for (String host : resolved.keySet()) {
+			Vector<String> addresses = new Vector<String>();
+
+			for (InetAddress address : resolved.get(host)) {
+				addresses.add(address.getHostAddress());
+			}
+
+			lines.add(host + " " + expiries.get(host) + " " + String.join(",", addresses));
+		}
+
+		//Write it out then move it into place, so an interrupted write can't leave a broken cache
+		try {
+			Path path = Paths.get(cachePath);
+			Path temp = Paths.get(cachePath + ".tmp");
+
+			Files.write(temp, lines, StandardCharsets.UTF_8);
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void readOffline() {
+		offline = new LinkedHashMap<String, Vector<InetAddress>>();
+
+		try {
+			for (String line : Files.readAllLines(Paths.get(offlinePath), StandardCharsets.UTF_8)) {
+				line = line.replaceAll("#.*", "").trim();
+
+				if (line.isEmpty()) {
+					continue;
+				}
+
+				String[] fields = line.split("\\s+");
+
+				//Anything else would need looking up, which is what we're trying to avoid
+				if (!isLiteral(fields[0])) {
+					continue;
+				}
+
+				InetAddress address = InetAddress.getByName(fields[0]);
+
+				if (!(address instanceof Inet4Address)) {
+					continue;
+				}
+
+				for (int i = 1; i < fields.length; ++i) {
+					String host = fields[i].toLowerCase();
+
+					if (!offline.containsKey(host)) {
+						offline.put(host, new Vector<InetAddress>());
+					}
+
+					offline.get(host).add(address);
+				}
+			}
+		}
+		catch (IOException e) {
+			JOptionPane.showMessageDialog(null, "I couldn't read your offline hosts file, " + offlinePath + ".\n\n" + e);
+			System.exit(1);
+		}
+	}
+}
@@ -43,6 +43,8 @@ public class InterfaceModel extends AModel {
 	}
 
     public void addIface(InterfaceData iface) {
+		ParallelBuild.checkWrite(null, me.getLabel() + "'s interfaces");
+		
 		ifaces.add(iface);
 		names.add(iface.getIface());
 	}
@@ -55,6 +57,8 @@ public class InterfaceModel extends AModel {
     }
     
 	public SimpleUnit addPPPIface(String name, String iface) {
+		ParallelBuild.checkWrite(null, me.getLabel() + "'s interfaces");
+		
 		String net = "";
 		net +=	"iface " + iface + " inet manual\n";
 		net += "\n";
@@ -2,9 +2,7 @@ package core.model;
 
 import java.net.InetAddress;
 
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Set;
 import java.util.Vector;
 
@@ -26,13 +24,13 @@ public abstract class MachineModel extends AModel {
 	private String emailAddress;
 	
 	//Networking stuff
-	private Vector<Integer> listenTCP;
-	private Vector<Integer> listenUDP;
+	private PortSet listenTCP;
+	private PortSet listenUDP;
 
-	private HashMap<String, Set<Integer>> ingress;
-	private HashMap<String, HashMap<Integer, Set<Integer>>> egress;
-	private HashMap<String, Set<Integer>> forward;
-	private HashMap<String, Set<Integer>> dnat;
+	private HashMap<String, PortSet> ingress;
+	private HashMap<String, HashMap<Integer, PortSet>> egress;
+	private HashMap<String, PortSet> forward;
+	private HashMap<String, PortSet> dnat;
 
 	MachineModel(String label, NetworkModel networkModel) {
 		super(label, networkModel);
@@ -49,12 +47,12 @@ public abstract class MachineModel extends AModel {
 		this.setNetworkIfaces(new InterfaceModel(label, this, networkModel));
 		this.getNetworkIfaces().init();
 		
-		this.ingress   = new HashMap<String, Set<Integer>>();
-		this.egress    = new HashMap<String, HashMap<Integer, Set<Integer>>>();
-		this.forward   = new HashMap<String, Set<Integer>>();
-		this.dnat      = new HashMap<String, Set<Integer>>();
-		this.listenTCP = new Vector<Integer>();
-		this.listenUDP = new Vector<Integer>(); 
+		this.ingress   = new HashMap<String, PortSet>();
+		this.egress    = new HashMap<String, HashMap<Integer, PortSet>>();
+		this.forward   = new HashMap<String, PortSet>();
+		this.dnat      = new HashMap<String, PortSet>();
+		this.listenTCP = new PortSet();
+		this.listenUDP = new PortSet();
 		
 		if (networkModel.getData().getRequiredIngress(getLabel()) != null) {
 			for (String source : networkModel.getData().getRequiredIngress(getLabel())) {
@@ -235,18 +233,24 @@ public abstract class MachineModel extends AModel {
 	}
 
 	void addRequiredIngress(String uri, Integer[] ports) {
-		Set<Integer> extant = this.ingress.get(uri);
+		addRequiredIngress(uri, new PortSet(ports));
+	}
+	
+	void addRequiredIngress(String uri, PortSet ports) {
+		ParallelBuild.checkWrite(null, getLabel() + "'s network requirements");
+
+		PortSet extant = this.ingress.get(uri);
 
 		if (extant == null) {
-			extant = new HashSet<Integer>();
+			extant = new PortSet();
 		}
 
-		extant.addAll(Arrays.asList(ports));
+		extant.addAll(ports);
 		
 		this.ingress.put(uri, extant);
 	}
 	
-	public HashMap<String, Set<Integer>> getRequiredIngress() {
+	public HashMap<String, PortSet> getRequiredIngress() {
 		return this.ingress;
 	}
 
@@ -266,6 +270,8 @@ public abstract class MachineModel extends AModel {
 	}
 	
 	public void addRequiredListen(Integer port, Boolean tcp) {
+		ParallelBuild.checkWrite(null, getLabel() + "'s network requirements");
+
 		if (tcp) {
 			this.listenTCP.add(port);
 		}
@@ -274,11 +280,11 @@ public abstract class MachineModel extends AModel {
 		}
 	}
 	
-	public Vector<Integer> getRequiredListenTCP() {
+	public PortSet getRequiredListenTCP() {
 		return this.listenTCP;
 	}
 
-	public Vector<Integer> getRequiredListenUDP() {
+	public PortSet getRequiredListenUDP() {
 		return this.listenUDP;
 	}
 
@@ -295,13 +301,15 @@ public abstract class MachineModel extends AModel {
 	}
 	
 	public void addRequiredEgress(String uri, Integer cidr, Integer[] ports) {
-		HashMap<Integer, Set<Integer>> extant = this.egress.get(uri);
+		ParallelBuild.checkWrite(null, getLabel() + "'s network requirements");
+
+		HashMap<Integer, PortSet> extant = this.egress.get(uri);
 		
 		if (extant == null) {
-			extant = new HashMap<Integer, Set<Integer>>();
+			extant = new HashMap<Integer, PortSet>();
 		}
 		
-		extant.put(cidr, new HashSet<Integer>(Arrays.asList(ports)));
+		extant.put(cidr, new PortSet(ports));
 		this.egress.put(uri, extant);
 	}
 	
@@ -309,7 +317,7 @@ public abstract class MachineModel extends AModel {
 		return (Integer) this.egress.get(uri).keySet().toArray()[0];
 	}
 	
-	public HashMap<String, HashMap<Integer, Set<Integer>>> getRequiredEgress() {
+	public HashMap<String, HashMap<Integer, PortSet>> getRequiredEgress() {
 		return this.egress;
 	}
 	
@@ -318,17 +326,19 @@ public abstract class MachineModel extends AModel {
 	}
 
 	private void addRequiredDnat(String server, Integer[] ports) {
-		Set<Integer> extant = this.dnat.get(server);
+		ParallelBuild.checkWrite(null, getLabel() + "'s network requirements");
+
+		PortSet extant = this.dnat.get(server);
 
 		if (extant == null) {
-			extant = new HashSet<Integer>();
+			extant = new PortSet();
 		}
-		extant.addAll(Arrays.asList(ports));
+		extant.addAll(ports);
 		
 		this.dnat.put(server, extant);
 	}
 	
-	public HashMap<String, Set<Integer>> getRequiredDnat() {
+	public HashMap<String, PortSet> getRequiredDnat() {
 		return this.dnat;
 	}
 
@@ -341,17 +351,19 @@ public abstract class MachineModel extends AModel {
 	}
 	
 	private void addRequiredForward(String destinationName, Integer[] ports) {
-		Set<Integer> extant = this.forward.get(destinationName);
+		ParallelBuild.checkWrite(null, getLabel() + "'s network requirements");
+
+		PortSet extant = this.forward.get(destinationName);
 		
 		if (extant == null) {
-			extant = new HashSet<Integer>();
+			extant = new PortSet();
 		}
-		extant.addAll(Arrays.asList(ports));
+		extant.addAll(ports);
 		
 		this.forward.put(destinationName, extant);
 	}
 	
-	public HashMap<String, Set<Integer>> getRequiredForward() {
+	public HashMap<String, PortSet> getRequiredForward() {
 		return this.forward;
 	}
 	
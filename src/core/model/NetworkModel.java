@@ -1,27 +1,36 @@
 package core.model;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.swing.JOptionPane;
 
 import core.data.NetworkData;
+import core.exec.FleetExec;
 import core.exec.ManageExec;
 import core.exec.PasswordExec;
+import core.iface.IScript;
 import core.iface.IUnit;
+import core.unit.AUnit;
 import profile.IPSet;
 
 public class NetworkModel {
@@ -31,6 +40,8 @@ public class NetworkModel {
 	private NetworkData data;
 	
 	private IPSet ipsets;
+	
+	private HostResolver resolver;
 
 	private LinkedHashMap<String, ServerModel> servers;
 	private LinkedHashMap<String, DeviceModel> devices;
@@ -79,6 +90,15 @@ public class NetworkModel {
 		return this.ipsets;
 	}
 
+	/**
+	 * @return a classifier for the given server's firewall, as it's currently configured
+	 */
+	public PacketClassifier getClassifier(String server) {
+		ServerModel serverModel = getServerModel(server);
+
+		return new PacketClassifier(serverModel.getFirewallModel(), this.ipsets, serverModel.getAddresses());
+	}
+
 	void init() {
 		//Create (and classify) all devices
 		for (String device : data.getAllDeviceLabels()) {
@@ -142,33 +162,106 @@ public class NetworkModel {
 			device.addRequiredEgress("255.255.255.255", 0);
 		}
 
+		//Servers keep the units this gives them for getUnits(), as it can't be run twice
 		for(ServerModel service : services) {
-			service.getNetworking();
+			service.initNetworkingUnits();
 		}
 
 		for(ServerModel metal : metals) {
 			if (metal.isRouter()) { //If it's an external server...
 				continue; //Skip it, otherwise we'll be duplicating its ifaces!
 			}
-			metal.getNetworking();
+			metal.initNetworkingUnits();
 		}
 
 		for(ServerModel dedi : dedis) {
-			dedi.getNetworking();
+			dedi.initNetworkingUnits();
+		}
+		
+		//Resolve everything our machines talk to in one go, rather than one at a time as the Router asks
+		Vector<String> hosts = new Vector<String>();
+		for (MachineModel machine : getAllMachines()) {
+			hosts.addAll(machine.getRequiredEgress().keySet());
+			hosts.addAll(machine.getRequiredIngress().keySet());
 		}
+		resolver.prefetch(hosts);
 		
 		//Now populate our ipsets before building our Router
 		this.ipsets.init();
 
 		for(ServerModel router : routers) { //This will also catch metal/routers
-			router.getNetworking();
+			router.initNetworkingUnits();
 		}
 
 		//Finally, get all of the config units
-		for (MachineModel machine : getAllMachines()) {
-			units.put(machine.getLabel(), machine.getUnits());
+		if (data.getParallelGeneration() && canBuildInParallel()) {
+			initUnitsParallel();
+		}
+		else {
+			for (MachineModel machine : getAllMachines()) {
+				units.put(machine.getLabel(), machine.getUnits());
+			}
 		}
+	}
 
+	/**
+	 * Only build in parallel if every server's profiles are ones ParallelBuild knows keep to their own machine.
+	 */
+	private boolean canBuildInParallel() {
+		for (ServerModel server : servers.values()) {
+			for (String profile : server.getProfiles()) {
+				if (!profile.equals("") && !ParallelBuild.isKnownSafe(profile)) {
+					System.out.println("Building units one machine at a time, as " + server.getLabel() + "'s " + profile + " profile hasn't been checked for building in parallel");
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+
+	/**
+	 * Once the networking phase is done, each machine's units only depend on its own state and on state which
+	 * networking has already settled, so they can be built concurrently and then put back in machine order.
+	 * ParallelBuild stops anything changing that settled state while we're doing so, rather than letting the
+	 * scripts depend on which thread got there first.
+	 */
+	private void initUnitsParallel() {
+		Vector<MachineModel> machines = getAllMachines();
+		Vector<Future<Vector<IUnit>>> generated = new Vector<Future<Vector<IUnit>>>();
+		
+		ForkJoinPool pool = new ForkJoinPool();
+		
+		ParallelBuild.start();
+		
+		for (final MachineModel machine : machines) {
+			generated.addElement(pool.submit(new Callable<Vector<IUnit>>() {
+				public Vector<IUnit> call() {
+					ParallelBuild.building(machine.getLabel());
+					
+					try {
+						return machine.getUnits();
+					}
+					finally {
+						ParallelBuild.done();
+					}
+				}
+			}));
+		}
+		
+		try {
+			for (int i = 0; i < machines.size(); ++i) {
+				units.put(machines.elementAt(i).getLabel(), generated.elementAt(i).get());
+			}
+		}
+		catch (InterruptedException | ExecutionException e) {
+			JOptionPane.showMessageDialog(null, "Building the units for your network has thrown an error.\n\nThe program will terminate.\n\n" + e);
+			System.exit(1);
+		}
+		finally {
+			pool.shutdown();
+			ParallelBuild.stop();
+		}
 	}
 
 	public Vector<MachineModel> getAllMachines() {
@@ -266,12 +359,20 @@ public class NetworkModel {
 			exec.manage();
 	}
 
-	public void auditAll(OutputStream out, InputStream in, boolean quiet) {
-		for (String server : this.servers.keySet()) {
-			ManageExec exec = getManageExec(server, "audit", out, quiet);
-			if (exec != null)
-				exec.manage();
+	public void auditAll(OutputStream out, InputStream in, final boolean quiet) {
+		FleetExec fleet = new FleetExec(getData().getAuditConcurrency(), getData().getAuditTimeout(), out);
+		
+		for (final String server : this.servers.keySet()) {
+			final OutputStream serverOut = fleet.getOutputStream(server);
+			
+			fleet.submit(server, new Callable<ManageExec>() {
+				public ManageExec call() {
+					return getManageExec(server, "audit", serverOut, quiet);
+				}
+			});
 		}
+		
+		fleet.finish();
 	}
 
 	public void configNonBlock(String server, OutputStream out, InputStream in) {
@@ -294,16 +395,20 @@ public class NetworkModel {
 
 		String password = pass.getPassword();
 		
-		String audit = getScript(serverModel, action, quiet);
+		IScript script = new IScript() {
+			public void write(Writer out) throws IOException {
+				getScript(serverModel, action, quiet, out);
+			}
+		};
 		
 		if (action.equals("dryrun")) {
 			try {
 				Date now = new Date();
-				PrintWriter wr = new PrintWriter(new FileOutputStream("./" + server + "_" + now.toString() + ".sh"));
-				wr.write(audit);
+				Writer wr = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("./" + server + "_" + now.toString() + ".sh"), StandardCharsets.UTF_8));
+				script.write(wr);
 				wr.flush();
 				wr.close();
-			} catch (FileNotFoundException e) {
+			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
@@ -316,35 +421,53 @@ public class NetworkModel {
 			return null;
 		}
 		
-		ManageExec exec = new ManageExec(this.getData().getUser(), password, serverModel.getIP(), this.getData().getSSHPort(server), audit, out);
+		ManageExec exec = new ManageExec(this.getData().getUser(), password, serverModel.getIP(), this.getData().getSSHPort(server), script, out);
 		return exec;
 	}
 
-	private String getScript(ServerModel serverModel, String action, boolean quiet) {
+	/**
+	 * Streams a server's script straight into the given Writer, one unit at a time,
+	 * so we never have to hold the whole thing in memory
+	 */
+	private void getScript(ServerModel serverModel, String action, boolean quiet, Writer out) throws IOException {
 		System.out.println(
 				"=======================" + this.label + ":" + serverModel.getLabel() + "==========================");
-		String line = this.getHeader(serverModel.getLabel(), action) + "\n";
-		Vector<IUnit> serverRules = units.get(serverModel.getLabel());
-		for (int i = 0; i < serverRules.size(); i++) {
-			IUnit unit = (IUnit) serverRules.elementAt(i);
-			line += "#============ " + serverRules.elementAt(i).getLabel() + " =============\n";
-			line += getText(action, unit, quiet) + "\n";
-		}
-		line += this.getFooter(serverModel.getLabel(), action);
-		return line;
+		out.write(this.getHeader(serverModel.getLabel(), action));
+		out.write("\n");
+		
+		UnitGraph graph = new UnitGraph(serverModel.getLabel(), units.get(serverModel.getLabel()));
+		
+		//Only worth warning about when it's about to matter
+		if (action.equals("config")) {
+			for (String warning : graph.check()) {
+				System.out.println(warning);
+			}
+		}
+		
+		if (action.equals("config") && getData().getConfigJobs() > 1) {
+			graph.genConfig(out, getData().getConfigJobs());
+		}
+		else {
+			for (IUnit unit : units.get(serverModel.getLabel())) {
+				out.write("#============ " + unit.getLabel() + " =============\n");
+				getText(action, unit, quiet, out);
+				out.write("\n");
+			}
+		}
+		
+		out.write(this.getFooter(serverModel.getLabel(), action));
+		out.flush();
 	}
 
-	private String getText(String action, IUnit unit, boolean quiet) {
-		String line = "";
+	private void getText(String action, IUnit unit, boolean quiet, Writer out) throws IOException {
 		if (action.equals("audit")) {
-			line = unit.genAudit(quiet);
+			unit.genAudit(out, quiet);
 		} else if (action.equals("config")) {
-			line = unit.genConfig();
+			unit.genConfig(out);
 		} else if (action.equals("dryrun")) {
-			line = unit.genConfig();
-			//line = unit.genDryRun();
+			unit.genConfig(out);
+			//unit.genDryRun(out);
 		}
-		return line;
 	}
 
 	private String getHeader(String server, String action) {
@@ -354,7 +477,9 @@ public class NetworkModel {
 		line += "proceed=1;\n";
 		line += "\n";
 		line += "echo \"Started " + action + " $hostname with config label: " + server + "\"\n";
-		line += "pass=0; fail=0; fail_string=;";
+		line += "pass=0; fail=0; fail_string=;\n";
+		line += "\n";
+		line += AUnit.getLibrary();
 		return line;
 	}
 
@@ -367,6 +492,9 @@ public class NetworkModel {
 
 	public void setData(NetworkData data) {
 		this.data = data;
+		
+		this.resolver = new HostResolver("./" + label + "_resolved.cache",
+				data.getResolveTimeout(), data.getResolveCacheTTL(), data.getOfflineHosts());
 	}
 
 	public NetworkData getData() {
@@ -545,26 +673,9 @@ public class NetworkModel {
 	}
 	
 	public InetAddress[] stringToAllIPs(String toParse) {
-		Object[] parsed = null;
-		ArrayList<InetAddress> addresses = new ArrayList<InetAddress>(); 
-		
 		//If we don't check this, null == 127.0.0.1, which throws everything :)
 		if (toParse == null) { return null; }
 		
-		try {
-			parsed = Inet4Address.getAllByName(toParse);
-		}
-		catch (UnknownHostException e) {
-			JOptionPane.showMessageDialog(null, toParse + " appears to be an invalid address, or you're currently offline. Please check your network connection and try again.");
-			System.exit(1);
-		}
-		
-		for (InetAddress ip : (InetAddress[]) parsed) {
-			if (ip instanceof Inet4Address) {
-				addresses.add(ip);
-			}
-		}
-
-		return addresses.toArray(new InetAddress[addresses.size()]);
+		return resolver.resolve(toParse);
 	}
 }
@@ -0,0 +1,469 @@
+package core.model;
+
+import java.util.LinkedHashMap;
+import java.util.Vector;
+
+/**
+ * Renders FirewallModel's tables as a single nftables table, which can be loaded atomically with nft -f.
+ *
+ * The rules are translated from their compiled FirewallRules.  If any of them can't be translated, rendering
+ * fails, rather than loading a ruleset which is missing it (which, for a DROP, would let its traffic through).
+ *
+ * Instead of two FORWARD jumps per machine, traffic is dispatched to each machine's chain by a single lookup in
+ * a verdict map keyed on source address, then one on destination address.
+ *
+ * Optionally, established TCP and UDP connections are offloaded to a (software) flowtable, after which their
+ * packets are forwarded without walking any chain.  Their first packets have already been through the full
+ * policy by then.  Marked packets, and connections from excluded subnets, are never offloaded.
+ *
+ * Chains we've been asked to count start with a named counter, so they can all be read and zeroed at once.
+ */
+class NftablesRenderer {
+
+	static final String TABLE = "thornsec";
+	static final String FLOWTABLE = "fastpath";
+	static final String OFFLOAD_EXCLUDED = "offload_excluded";
+
+	/**
+	 * Thrown when a rule can't be expressed in nftables, so the ruleset would be incomplete
+	 */
+	public static class UntranslatableRuleException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		UntranslatableRuleException(String message) {
+			super(message);
+		}
+	}
+
+	private String server;
+	private LinkedHashMap<String, LinkedHashMap<String, Vector<FirewallRule>>> tables;
+	private LinkedHashMap<String, String> dispatch;
+	private String sets;
+	private Vector<String> offloadIfaces;
+	private Vector<String> offloadExcluded;
+	private Vector<String> counted;
+
+	/**
+	 * @param server   Label of the server we're rendering for, for errors
+	 * @param tables   iptables table -> chain -> compiled rules, in the order they're evaluated
+	 * @param dispatch subnet -> chain which all of its forwarded traffic should go to
+	 * @param sets     Named set definitions
+	 * @param offloadIfaces   Interfaces to offload established connections between, or null not to
+	 * @param offloadExcluded Subnets whose connections should never be offloaded
+	 * @param counted         Filter chains to count the traffic through
+	 */
+	NftablesRenderer(String server, LinkedHashMap<String, LinkedHashMap<String, Vector<FirewallRule>>> tables,
+			LinkedHashMap<String, String> dispatch, String sets, Vector<String> offloadIfaces, Vector<String> offloadExcluded, Vector<String> counted) {
+		this.server   = server;
+		this.tables   = tables;
+		this.dispatch = dispatch;
+		this.sets     = sets;
+		this.offloadIfaces   = offloadIfaces;
+		this.offloadExcluded = offloadExcluded;
+		this.counted         = counted;
+	}
+
+	/**
+	 * @throws UntranslatableRuleException if any rule can't be translated
+	 */
+	String render() {
+		String ruleset = "";
+		//Creating then deleting our table means this file will load whether or not it already exists,
+		//and as nft -f is a single transaction, there's never a moment with no firewall
+		ruleset += "table ip " + TABLE + " {}\n";
+		ruleset += "delete table ip " + TABLE + "\n";
+		ruleset += "table ip " + TABLE + " {\n";
+		ruleset += sets;
+		ruleset += getFlowtable();
+
+		for (String chain : counted) {
+			ruleset += "\tcounter " + chain + " {}\n";
+		}
+
+		//Declare our own chains up front, so the maps and rules can jump to them regardless of order
+		for (String table : tables.keySet()) {
+			for (String chain : tables.get(table).keySet()) {
+				if (getHook(table, chain) == null) {
+					ruleset += "\tchain " + getChainName(table, chain) + " {}\n";
+				}
+			}
+		}
+
+		ruleset += getMap("forward_src");
+		ruleset += getMap("forward_dst");
+
+		for (String table : tables.keySet()) {
+			for (String chain : tables.get(table).keySet()) {
+				ruleset += getChain(table, chain);
+			}
+		}
+
+		ruleset += "}";
+
+		return ruleset;
+	}
+
+	private String getFlowtable() {
+		if (offloadIfaces == null || offloadIfaces.isEmpty()) {
+			return "";
+		}
+		
+		String flowtable = "";
+		flowtable += "\tflowtable " + FLOWTABLE + " {\n";
+		flowtable += "\t\thook ingress priority 0;\n";
+		flowtable += "\t\tdevices = " + toQuotedList(String.join(",", offloadIfaces)) + ";\n";
+		flowtable += "\t}\n";
+		
+		flowtable += "\tset " + OFFLOAD_EXCLUDED + " {\n";
+		flowtable += "\t\ttype ipv4_addr;\n";
+		flowtable += "\t\tflags interval;\n";
+		flowtable += "\t\tauto-merge;\n";
+		if (!offloadExcluded.isEmpty()) {
+			flowtable += "\t\telements = { " + String.join(", ", offloadExcluded) + " }\n";
+		}
+		flowtable += "\t}\n";
+		
+		return flowtable;
+	}
+	
+	/**
+	 * @return the rule which hands established connections to the flowtable, which goes before anything else in FORWARD
+	 */
+	private String getOffload() {
+		String offload = "";
+		offload += "meta l4proto { tcp, udp }";
+		offload += " ct state established";
+		offload += " meta mark 0";
+		offload += " ct original ip saddr != @" + OFFLOAD_EXCLUDED;
+		offload += " flow add @" + FLOWTABLE;
+		offload += " comment \\\"Offload established connections, which have already been through our policy\\\"";
+		
+		return offload;
+	}
+	
+	private String getMap(String name) {
+		String map = "";
+		map += "\tmap " + name + " {\n";
+		map += "\t\ttype ipv4_addr : verdict;\n";
+		map += "\t\tflags interval;\n";
+
+		if (!dispatch.isEmpty()) {
+			Vector<String> elements = new Vector<String>();
+			for (String subnet : dispatch.keySet()) {
+				elements.add(subnet + " : jump " + dispatch.get(subnet));
+			}
+
+			map += "\t\telements = { " + String.join(", ", elements) + " }\n";
+		}
+
+		map += "\t}\n";
+
+		return map;
+	}
+
+	private String getChain(String table, String chain) {
+		String text = "";
+		text += "\tchain " + getChainName(table, chain) + " {\n";
+
+		String hook = getHook(table, chain);
+		if (hook != null) {
+			text += "\t\t" + hook + "\n";
+		}
+		
+		if (table.equals("filter") && chain.equals("FORWARD") && offloadIfaces != null && !offloadIfaces.isEmpty()) {
+			text += "\t\t" + getOffload() + "\n";
+		}
+
+		if (table.equals("filter") && counted.contains(chain)) {
+			text += "\t\tcounter name " + chain + "\n";
+		}
+
+		boolean dispatched = false;
+
+		for (FirewallRule rule : tables.get(table).get(chain)) {
+			if (rule.isDispatch()) {
+				if (!dispatched) {
+					text += "\t\tip saddr vmap @forward_src\n";
+					text += "\t\tip daddr vmap @forward_dst\n";
+					dispatched = true;
+				}
+				continue;
+			}
+
+			String translated = translate(table, rule);
+
+			if (translated == null) {
+				throw new UntranslatableRuleException(server + ": couldn't translate the " + table + " " + chain + " rule \""
+						+ rule.toIptables() + "\" to nftables, so can't build its ruleset. Use the iptables firewall backend instead.");
+			}
+
+			text += "\t\t" + translated + "\n";
+		}
+
+		text += "\t}\n";
+
+		return text;
+	}
+
+	private String getChainName(String table, String chain) {
+		if (table.equals("filter")) {
+			return chain;
+		}
+
+		return table + "_" + chain;
+	}
+
+	/**
+	 * @return the type/hook line for iptables' built in chains, or null for our own chains
+	 */
+	private String getHook(String table, String chain) {
+		String type     = "filter";
+		String priority = "0";
+
+		if (table.equals("mangle")) {
+			type     = (chain.equals("OUTPUT")) ? "route" : "filter";
+			priority = "-150";
+		}
+		else if (table.equals("nat")) {
+			type     = "nat";
+			priority = (chain.equals("PREROUTING") || chain.equals("OUTPUT")) ? "-100" : "100";
+		}
+		else if (!table.equals("filter")) {
+			return null;
+		}
+
+		switch (chain) {
+			case "PREROUTING":
+			case "INPUT":
+			case "FORWARD":
+			case "OUTPUT":
+			case "POSTROUTING":
+				return "type " + type + " hook " + chain.toLowerCase() + " priority " + priority + "; policy accept;";
+			default:
+				return null;
+		}
+	}
+
+	private String toList(String values, String separator) {
+		String[] split = values.split(",");
+
+		if (split.length == 1) {
+			return split[0].replace(":", separator);
+		}
+
+		Vector<String> list = new Vector<String>();
+		for (String value : split) {
+			list.add(value.replace(":", separator));
+		}
+
+		return "{ " + String.join(", ", list) + " }";
+	}
+
+	private String toQuotedList(String values) {
+		Vector<String> list = new Vector<String>();
+		for (String value : values.split(",")) {
+			list.add("\\\"" + value + "\\\"");
+		}
+
+		return (list.size() == 1) ? list.firstElement() : "{ " + String.join(", ", list) + " }";
+	}
+
+	/**
+	 * iptables' trailing + wildcard is nft's trailing *.  Older nfts can't match wildcards in a set, though.
+	 * 
+	 * @return the interfaces as an nft match, or null if there's a wildcard in a list of them
+	 */
+	private String toIfaceList(String values) {
+		if (values.contains("+") && values.contains(",")) {
+			return null;
+		}
+		
+		return toQuotedList(values.replaceAll("\\+$", "*"));
+	}
+
+	/**
+	 * @return the rule in nft syntax, or null if there's something in it we don't understand
+	 */
+	private String translate(String table, FirewallRule rule) {
+		if (!rule.isParsed()) {
+			return null;
+		}
+
+		Vector<String> matches = new Vector<String>();
+		String proto = null;
+
+		String connbytes     = null;
+		String connbytesDir  = "both";
+		String connbytesMode = "bytes";
+		String limit         = null;
+
+		for (String key : rule.getMatches().keySet()) {
+			String option = key.replace("! ", "");
+			String not    = key.startsWith("!") ? "!= " : "";
+			String value  = rule.getMatches().get(key);
+
+			switch (option) {
+				case "-p":
+					if (!not.equals("")) {
+						return null;
+					}
+					proto = value;
+					break;
+				case "-s":
+					matches.add("ip saddr " + not + toList(value, ":"));
+					break;
+				case "-d":
+					matches.add("ip daddr " + not + toList(value, ":"));
+					break;
+				case "-i":
+				case "-o":
+					String ifaces = toIfaceList(value);
+					if (ifaces == null) {
+						return null;
+					}
+					matches.add((option.equals("-i") ? "iifname " : "oifname ") + not + ifaces);
+					break;
+				case "--match-set":
+					String[] set = value.split(" ");
+					matches.add((set[1].startsWith("src") ? "ip saddr " : "ip daddr ") + not + "@" + set[0]);
+					break;
+				case "--state":
+					matches.add("ct state " + not + toList(value.toLowerCase(), ":"));
+					break;
+				case "--connbytes":
+					connbytes = value;
+					break;
+				case "--connbytes-dir":
+					connbytesDir = value;
+					break;
+				case "--connbytes-mode":
+					connbytesMode = value;
+					break;
+				case "--limit":
+					limit = "limit rate " + value;
+					break;
+				case "--tcp-flags":
+					String[] flags = value.toLowerCase().split(" ");
+					if (flags.length != 2) {
+						return null;
+					}
+					matches.add("tcp flags & (" + flags[0].replace(",", " | ") + ") " + (not.equals("") ? "== " : not)
+							+ (flags[1].equals("none") ? "0x0" : flags[1].replace(",", " | ")));
+					break;
+				case "--mss":
+					matches.add("tcp option maxseg size " + not + value.replace(":", "-"));
+					break;
+				default:
+					return null;
+			}
+		}
+
+		if (rule.getPorts() != null) {
+			if (proto == null) {
+				return null;
+			}
+
+			String not   = rule.getPortsKey().startsWith("!") ? "!= " : "";
+			String ports = toList(String.join(",", rule.getPorts()), "-");
+
+			matches.add(proto + (rule.getPortsKey().endsWith("--dports") ? " dport " : " sport ") + not + ports);
+		}
+		else if (proto != null) {
+			matches.add("meta l4proto " + proto);
+		}
+
+		if (connbytes != null) {
+			String dir = connbytesDir.equals("both") ? "" : connbytesDir + " ";
+			String range = connbytes.endsWith(":")
+					? ">= " + connbytes.substring(0, connbytes.length() - 1)
+					: (connbytes.startsWith(":") ? "<= " + connbytes.substring(1) : connbytes.replace(":", "-"));
+
+			matches.add("ct " + dir + connbytesMode + " " + range);
+		}
+
+		if (limit != null) {
+			matches.add(limit);
+		}
+
+		String target = rule.getTarget();
+		String prefix = rule.getTargetOption("--log-prefix");
+		String to     = (rule.getTargetOption("--to-destination") != null) ? rule.getTargetOption("--to-destination") : rule.getTargetOption("--to-source");
+		String mark   = rule.getTargetOption("--set-mark");
+		String mss    = rule.getTargetOption("--set-mss");
+
+		if (to != null && to.contains(",")) {
+			return null;
+		}
+
+		if (target == null) {
+			matches.add("continue");
+		}
+		else {
+			switch (target) {
+				case "ACCEPT":
+					matches.add("accept");
+					break;
+				case "DROP":
+					matches.add("drop");
+					break;
+				case "REJECT":
+					matches.add("reject");
+					break;
+				case "RETURN":
+					matches.add("return");
+					break;
+				case "LOG":
+					matches.add((prefix == null) ? "log" : "log prefix \\\"" + escape(prefix) + "\\\"");
+					break;
+				case "MASQUERADE":
+					matches.add("masquerade");
+					break;
+				case "DNAT":
+					if (to == null) { return null; }
+					matches.add("dnat to " + to);
+					break;
+				case "SNAT":
+					if (to == null) { return null; }
+					matches.add("snat to " + to);
+					break;
+				case "MARK":
+					if (mark == null) { return null; }
+					matches.add("meta mark set " + mark);
+					break;
+				case "TCPMSS":
+					if (rule.getTargetOption("--clamp-mss-to-pmtu") != null) {
+						matches.add("tcp option maxseg size set rt mtu");
+					}
+					else if (mss != null) {
+						matches.add("tcp option maxseg size set " + mss);
+					}
+					else {
+						return null;
+					}
+					break;
+				default:
+					matches.add("jump " + getChainName(table, target));
+			}
+		}
+
+		matches.add("comment \\\"" + escape(rule.getComment()) + "\\\"");
+
+		return String.join(" ", matches);
+	}
+
+	/**
+	 * nft strings can't contain double quotes, or be longer than 128 bytes, and the whole ruleset is escaped for echo
+	 *
+	 * @return the text as the inside of an nft string
+	 */
+	private String escape(String text) {
+		if (text == null) {
+			return "";
+		}
+
+		text = text.replace('"', '\'').replaceAll("[\\r\\n]+", " ");
+		text = (text.length() > 128) ? text.substring(0, 128) : text;
+
+		return text.replace("\\", "\\\\").replace("$", "\\$").replace("`", "\\`");
+	}
+}
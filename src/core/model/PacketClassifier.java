@@ -0,0 +1,774 @@
+package core.model;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import profile.IPSet;
+
+/**
+ * Evaluates a server's generated firewall in the JVM, so we can ask whether a flow would be let through
+ * without having to deploy it first.
+ *
+ * Flows are walked through the same chains, in the same order, as the kernel would: mangle and nat PREROUTING,
+ * then INPUT, FORWARD or OUTPUT (depending on where the flow ends up after any DNAT), then mangle POSTROUTING.
+ * Built in chains all have an ACCEPT policy, as ours do.
+ *
+ * Each chain is indexed on the source and destination prefixes its rules match, so a flow is only checked
+ * against the rules which could match it.
+ *
+ * Rules which we couldn't parse never match, and any verdict reached past one is marked as uncertain.  The same
+ * goes for rules which match on an interface the flow doesn't say it's on.
+ */
+public class PacketClassifier {
+
+	private static final Integer MAX_DEPTH = 32;
+
+	private static final Pattern ADDRESS = Pattern.compile("^(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})(?:/(\\d{1,2}))?$");
+
+	private LinkedHashMap<String, LinkedHashMap<String, Chain>> tables;
+	private HashSet<Integer> local;
+
+	/**
+	 * A single (synthetic) connection
+	 */
+	public static class Flow {
+		String proto;
+		int src;
+		int sport;
+		int dst;
+		int dport;
+		String in;
+		String out;
+		String state;
+		long bytes;
+
+		public Flow(String proto, InetAddress src, int sport, InetAddress dst, int dport) {
+			this.proto = proto;
+			this.src   = toInt(src);
+			this.sport = sport;
+			this.dst   = toInt(dst);
+			this.dport = dport;
+			this.in    = null;
+			this.out   = null;
+			this.state = "NEW";
+			this.bytes = 0;
+		}
+
+		private Flow(Flow flow) {
+			this.proto = flow.proto;
+			this.src   = flow.src;
+			this.sport = flow.sport;
+			this.dst   = flow.dst;
+			this.dport = flow.dport;
+			this.in    = flow.in;
+			this.out   = flow.out;
+			this.state = flow.state;
+			this.bytes = flow.bytes;
+		}
+
+		/**
+		 * Which interfaces the flow comes in and goes out on.  null (the default) means we don't know, so any
+		 * verdict reached past a rule which matches on that interface is uncertain.
+		 */
+		public Flow setInterfaces(String in, String out) {
+			this.in  = in;
+			this.out = out;
+			return this;
+		}
+
+		/**
+		 * Connection tracking state, e.g. "ESTABLISHED".  Defaults to "NEW".
+		 */
+		public Flow setState(String state) {
+			this.state = state;
+			return this;
+		}
+
+		/**
+		 * How many bytes the connection has transferred so far, for connbytes matches
+		 */
+		public Flow setBytes(long bytes) {
+			this.bytes = bytes;
+			return this;
+		}
+	}
+
+	/**
+	 * What happened to a flow, and the rules which decided it
+	 */
+	public static class Verdict {
+		private String action;
+		private Vector<String> trace;
+		private boolean uncertain;
+
+		private Verdict() {
+			this.action    = "ACCEPT";
+			this.trace     = new Vector<String>();
+			this.uncertain = false;
+		}
+
+		/**
+		 * @return ACCEPT, DROP or REJECT
+		 */
+		public String getAction() {
+			return action;
+		}
+
+		public boolean isAccepted() {
+			return action.equals("ACCEPT");
+		}
+
+		/**
+		 * @return each matching rule the flow passed, as "table chain: comment"
+		 */
+		public Vector<String> getTrace() {
+			return trace;
+		}
+
+		/**
+		 * @return whether the flow passed a rule we couldn't evaluate, which may have changed the verdict
+		 */
+		public boolean isUncertain() {
+			return uncertain;
+		}
+
+		@Override
+		public String toString() {
+			return action + (uncertain ? "?" : "");
+		}
+	}
+
+	/**
+	 * @param firewall The server's firewall
+	 * @param ipsets   Our sets, for --match-set
+	 * @param local    The server's own addresses, to tell INPUT and OUTPUT from FORWARD
+	 */
+	public PacketClassifier(FirewallModel firewall, IPSet ipsets, Collection<InetAddress> local) {
+		this(firewall.getCompiledTables(new FirewallCompiler()), ipsets, local);
+	}
+
+	/**
+	 * @param compiled table -> chain -> its rules
+	 * @param ipsets   Our sets, for --match-set (may be null if no rule uses one)
+	 * @param local    The server's own addresses
+	 */
+	PacketClassifier(LinkedHashMap<String, LinkedHashMap<String, Vector<FirewallRule>>> compiled, IPSet ipsets, Collection<InetAddress> local) {
+		this.tables = new LinkedHashMap<String, LinkedHashMap<String, Chain>>();
+		this.local  = new HashSet<Integer>();
+
+		for (String table : compiled.keySet()) {
+			tables.put(table, new LinkedHashMap<String, Chain>());
+
+			for (String chain : compiled.get(table).keySet()) {
+				Vector<Rule> rules = new Vector<Rule>();
+
+				for (FirewallRule rule : compiled.get(table).get(chain)) {
+					rules.add(new Rule(rule, ipsets));
+				}
+
+				tables.get(table).put(chain, new Chain(rules.toArray(new Rule[rules.size()])));
+			}
+		}
+
+		for (InetAddress address : local) {
+			if (address instanceof Inet4Address) {
+				this.local.add(toInt(address));
+			}
+		}
+	}
+
+	/**
+	 * Runs a flow through the firewall
+	 */
+	public Verdict classify(Flow flow) {
+		Flow f = new Flow(flow);
+		Verdict verdict = new Verdict();
+		boolean isNew = f.state.equals("NEW");
+
+		String action = null;
+
+		if (local.contains(f.src)) {
+			action = first(action, walk("mangle", "OUTPUT", f, verdict, 0));
+			action = isNew ? first(action, walk("nat", "OUTPUT", f, verdict, 0)) : action;
+			action = first(action, walk("filter", "OUTPUT", f, verdict, 0));
+		}
+		else {
+			action = first(action, walk("mangle", "PREROUTING", f, verdict, 0));
+			action = isNew ? first(action, walk("nat", "PREROUTING", f, verdict, 0)) : action;
+
+			//DNAT may have sent it somewhere else
+			String chain = local.contains(f.dst) ? "INPUT" : "FORWARD";
+
+			action = first(action, walk("mangle", chain, f, verdict, 0));
+			action = first(action, walk("filter", chain, f, verdict, 0));
+		}
+
+		action = first(action, walk("mangle", "POSTROUTING", f, verdict, 0));
+
+		verdict.action = (action == null) ? "ACCEPT" : action;
+
+		return verdict;
+	}
+
+	/**
+	 * Can one machine open a connection to another, on a given port?
+	 *
+	 * @return the verdict, or null if either machine has no (IPv4) address, so there's no flow to classify
+	 */
+	public Verdict canReach(MachineModel from, MachineModel to, String proto, int port) {
+		InetAddress src = getAddress(from);
+		InetAddress dst = getAddress(to);
+
+		if (src == null || dst == null) {
+			return null;
+		}
+
+		return classify(new Flow(proto, src, 40000, dst, port));
+	}
+
+	/**
+	 * Writes out which machines can reach which, on a given port, as CSV.
+	 * Rows are sources, columns destinations, and uncertain verdicts have a "?" appended.  Machines without an
+	 * address can't be classified, so every verdict to or from them is just "?".
+	 */
+	public void writeReachabilityMatrix(Collection<? extends MachineModel> machines, String proto, int port, Writer out) throws IOException {
+		out.write("from\\to");
+
+		for (MachineModel to : machines) {
+			out.write("," + to.getLabel());
+		}
+
+		for (MachineModel from : machines) {
+			out.write("\n" + from.getLabel());
+
+			for (MachineModel to : machines) {
+				if (from == to) {
+					out.write(",-");
+					continue;
+				}
+
+				Verdict verdict = canReach(from, to, proto, port);
+
+				out.write("," + ((verdict == null) ? "?" : verdict.toString()));
+			}
+		}
+	}
+
+	private static InetAddress getAddress(MachineModel machine) {
+		for (InetAddress address : machine.getAddresses()) {
+			if (address instanceof Inet4Address) {
+				return address;
+			}
+		}
+
+		return null;
+	}
+
+	//Once something's decided a flow's fate, later chains don't get a say
+	private String first(String decided, String action) {
+		if (decided != null) {
+			return decided;
+		}
+
+		return (action == null || action.equals("ACCEPT")) ? null : action;
+	}
+
+	/**
+	 * @return ACCEPT, DROP or REJECT if a rule in this chain (or one it jumps to) decides the flow's fate,
+	 *         or null if it falls off the end
+	 */
+	private String walk(String table, String chainName, Flow f, Verdict verdict, int depth) {
+		if (!tables.containsKey(table) || !tables.get(table).containsKey(chainName)) {
+			return null;
+		}
+
+		if (depth > MAX_DEPTH) {
+			verdict.uncertain = true;
+			return null;
+		}
+
+		Chain chain = tables.get(table).get(chainName);
+
+		for (int i : chain.getCandidates(f)) {
+			Rule rule = chain.rules[i];
+
+			if (rule.unknown) {
+				verdict.uncertain = true;
+				continue;
+			}
+
+			Boolean matches = rule.matches(f);
+
+			if (matches == null) {
+				verdict.uncertain = true;
+				continue;
+			}
+
+			if (!matches) {
+				continue;
+			}
+
+			verdict.trace.add(table + " " + chainName + ": " + rule.comment);
+
+			if (rule.target == null) {
+				continue;
+			}
+
+			switch (rule.target) {
+				case "ACCEPT":
+				case "DROP":
+				case "REJECT":
+					return rule.target;
+				case "RETURN":
+					return null;
+				case "LOG":
+				case "MARK":
+					continue;
+				case "DNAT":
+					f.dst   = rule.toAddress;
+					f.dport = (rule.toPort >= 0) ? rule.toPort : f.dport;
+					return "ACCEPT";
+				case "SNAT":
+					f.src   = rule.toAddress;
+					f.sport = (rule.toPort >= 0) ? rule.toPort : f.sport;
+					return "ACCEPT";
+				case "MASQUERADE":
+					return "ACCEPT";
+				default:
+					if (!tables.get(table).containsKey(rule.target)) {
+						verdict.uncertain = true;
+						continue;
+					}
+
+					String action = walk(table, rule.target, f, verdict, depth + 1);
+
+					if (action != null) {
+						return action;
+					}
+			}
+		}
+
+		return null;
+	}
+
+	static int toInt(InetAddress address) {
+		if (!(address instanceof Inet4Address)) {
+			throw new IllegalArgumentException(address + " isn't an IPv4 address");
+		}
+
+		return ByteBuffer.wrap(address.getAddress()).getInt();
+	}
+
+	private static int toMask(int cidr) {
+		return (cidr == 0) ? 0 : (0xffffffff << (32 - cidr));
+	}
+
+	/**
+	 * @return network, mask pairs, or null if any of them isn't an IPv4 address or prefix
+	 */
+	private static int[] toPrefixes(String addresses) {
+		String[] split = addresses.split(",");
+		int[] prefixes = new int[split.length * 2];
+
+		for (int i = 0; i < split.length; ++i) {
+			Matcher matcher = ADDRESS.matcher(split[i].trim());
+
+			if (!matcher.matches()) {
+				return null;
+			}
+
+			int address = 0;
+			for (int octet = 1; octet <= 4; ++octet) {
+				address = (address << 8) | Integer.parseInt(matcher.group(octet));
+			}
+
+			int mask = toMask((matcher.group(5) == null) ? 32 : Integer.parseInt(matcher.group(5)));
+
+			prefixes[i * 2]     = address & mask;
+			prefixes[i * 2 + 1] = mask;
+		}
+
+		return prefixes;
+	}
+
+	/**
+	 * A rule, with everything it matches on parsed up front
+	 */
+	private static class Rule {
+		String comment;
+		boolean unknown;
+
+		String proto;
+		boolean protoNot;
+
+		int[] src; //network, mask pairs
+		boolean srcNot;
+		int[] dst;
+		boolean dstNot;
+
+		long[] set; //Sorted, disjoint start, end pairs
+		boolean setSrc;
+		boolean setNot;
+
+		String[] in;
+		boolean inNot;
+		String[] out;
+		boolean outNot;
+
+		PortSet ports;
+		boolean portsDst;
+		boolean portsNot;
+
+		String[] states;
+		boolean stateNot;
+
+		long bytesMin;
+		long bytesMax;
+
+		String target;
+		int toAddress;
+		int toPort;
+
+		Rule(FirewallRule rule, IPSet ipsets) {
+			this.comment  = rule.getComment();
+			this.unknown  = !rule.isParsed();
+			this.target   = rule.getTarget();
+			this.bytesMin = -1;
+			this.bytesMax = -1;
+			this.toPort   = -1;
+
+			if (unknown) {
+				return;
+			}
+
+			for (String key : rule.getMatches().keySet()) {
+				String option = key.replace("! ", "");
+				boolean not   = key.startsWith("!");
+				String value  = rule.getMatches().get(key);
+
+				switch (option) {
+					case "-p":
+						proto    = value;
+						protoNot = not;
+						break;
+					case "-s":
+						src    = toPrefixes(value);
+						srcNot = not;
+						unknown |= (src == null);
+						break;
+					case "-d":
+						dst    = toPrefixes(value);
+						dstNot = not;
+						unknown |= (dst == null);
+						break;
+					case "-i":
+						in    = value.split(",");
+						inNot = not;
+						break;
+					case "-o":
+						out    = value.split(",");
+						outNot = not;
+						break;
+					case "--match-set":
+						String[] match = value.split(" ");
+						set    = toRanges(ipsets.getPrefixes(match[0]));
+						setSrc = match[1].startsWith("src");
+						setNot = not;
+						unknown |= (set == null);
+						break;
+					case "--state":
+						states   = value.split(",");
+						stateNot = not;
+						break;
+					case "--connbytes":
+						String[] range = value.split(":", -1);
+						bytesMin = range[0].isEmpty() ? 0 : Long.parseLong(range[0]);
+						bytesMax = (range.length < 2 || range[1].isEmpty()) ? -1 : Long.parseLong(range[1]);
+						break;
+					case "--connbytes-dir":
+					case "--connbytes-mode":
+					case "--limit":
+						//We assume flows are under any limits
+						break;
+					default:
+						unknown = true;
+				}
+			}
+
+			if (rule.getPorts() != null) {
+				ports    = new PortSet();
+				portsDst = rule.getPortsKey().endsWith("--dports");
+				portsNot = rule.getPortsKey().startsWith("!");
+
+				try {
+					for (String port : rule.getPorts()) {
+						String[] range = port.split(":");
+						ports.addRange(Integer.parseInt(range[0]), Integer.parseInt(range[range.length - 1]));
+					}
+				}
+				catch (IllegalArgumentException e) {
+					unknown = true;
+				}
+			}
+
+			String to = (rule.getTargetOption("--to-destination") != null) ? rule.getTargetOption("--to-destination") : rule.getTargetOption("--to-source");
+
+			if (to != null) {
+				String[] split = to.split(",")[0].split(":");
+				int[] address = toPrefixes(split[0]);
+
+				if (address == null) {
+					unknown = true;
+				}
+				else {
+					toAddress = address[0];
+					toPort    = (split.length > 1) ? Integer.parseInt(split[1].split("-")[0]) : -1;
+				}
+			}
+		}
+
+		private static long[] toRanges(Vector<String> prefixes) {
+			if (prefixes == null) {
+				return null;
+			}
+
+			long[] ranges = new long[prefixes.size() * 2];
+
+			for (int i = 0; i < prefixes.size(); ++i) {
+				int[] prefix = toPrefixes(prefixes.elementAt(i));
+
+				if (prefix == null) {
+					return null;
+				}
+
+				ranges[i * 2]     = prefix[0] & 0xffffffffL;
+				ranges[i * 2 + 1] = (prefix[0] | ~prefix[1]) & 0xffffffffL;
+			}
+
+			//Sort the pairs by their start, for a binary search (aggregated prefixes never overlap)
+			Long[][] pairs = new Long[prefixes.size()][];
+			for (int i = 0; i < pairs.length; ++i) {
+				pairs[i] = new Long[] { ranges[i * 2], ranges[i * 2 + 1] };
+			}
+			Arrays.sort(pairs, new Comparator<Long[]>() {
+				public int compare(Long[] a, Long[] b) {
+					return a[0].compareTo(b[0]);
+				}
+			});
+			for (int i = 0; i < pairs.length; ++i) {
+				ranges[i * 2]     = pairs[i][0];
+				ranges[i * 2 + 1] = pairs[i][1];
+			}
+
+			return ranges;
+		}
+
+		private static boolean inPrefixes(int[] prefixes, int address) {
+			for (int i = 0; i < prefixes.length; i += 2) {
+				if ((address & prefixes[i + 1]) == prefixes[i]) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		private static boolean inRanges(long[] ranges, int address) {
+			long a = address & 0xffffffffL;
+			int low  = 0;
+			int high = (ranges.length / 2) - 1;
+
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+
+				if (a < ranges[mid * 2]) {
+					high = mid - 1;
+				}
+				else if (a > ranges[mid * 2 + 1]) {
+					low = mid + 1;
+				}
+				else {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		private static boolean matchesIface(String[] ifaces, String iface) {
+			for (String candidate : ifaces) {
+				if (candidate.endsWith("+") ? iface.startsWith(candidate.substring(0, candidate.length() - 1)) : iface.equals(candidate)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * @return whether this rule matches f, or null if that depends on an interface f doesn't have
+		 */
+		Boolean matches(Flow f) {
+			if (proto != null && proto.equals(f.proto) == protoNot) {
+				return false;
+			}
+			if (src != null && inPrefixes(src, f.src) == srcNot) {
+				return false;
+			}
+			if (dst != null && inPrefixes(dst, f.dst) == dstNot) {
+				return false;
+			}
+			if (set != null && inRanges(set, setSrc ? f.src : f.dst) == setNot) {
+				return false;
+			}
+			if (ports != null && ports.contains(portsDst ? f.dport : f.sport) == portsNot) {
+				return false;
+			}
+			if (states != null && Arrays.asList(states).contains(f.state) == stateNot) {
+				return false;
+			}
+			if (bytesMin >= 0 && (f.bytes < bytesMin || (bytesMax >= 0 && f.bytes > bytesMax))) {
+				return false;
+			}
+			if ((in != null && f.in == null) || (out != null && f.out == null)) {
+				return null;
+			}
+			if (in != null && matchesIface(in, f.in) == inNot) {
+				return false;
+			}
+			if (out != null && matchesIface(out, f.out) == outNot) {
+				return false;
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * A chain's rules, indexed on the source or destination prefixes they need
+	 */
+	private static class Chain {
+		Rule[] rules;
+
+		//Rules which don't need a particular source or destination
+		int[] wildcard;
+
+		//Prefix length -> network -> the rules which need a source (or destination) in it
+		HashMap<Integer, HashMap<Integer, int[]>> bySrc;
+		HashMap<Integer, HashMap<Integer, int[]>> byDst;
+
+		Chain(Rule[] rules) {
+			this.rules = rules;
+			this.bySrc = new HashMap<Integer, HashMap<Integer, int[]>>();
+			this.byDst = new HashMap<Integer, HashMap<Integer, int[]>>();
+
+			Vector<Integer> wildcard = new Vector<Integer>();
+
+			for (int i = 0; i < rules.length; ++i) {
+				Rule rule = rules[i];
+
+				if (!rule.unknown && rule.src != null && !rule.srcNot) {
+					index(bySrc, rule.src, i);
+				}
+				else if (!rule.unknown && rule.dst != null && !rule.dstNot) {
+					index(byDst, rule.dst, i);
+				}
+				else {
+					wildcard.add(i);
+				}
+			}
+
+			this.wildcard = toArray(wildcard);
+		}
+
+		private static void index(HashMap<Integer, HashMap<Integer, int[]>> index, int[] prefixes, int rule) {
+			for (int i = 0; i < prefixes.length; i += 2) {
+				Integer length = Integer.bitCount(prefixes[i + 1]);
+
+				if (!index.containsKey(length)) {
+					index.put(length, new HashMap<Integer, int[]>());
+				}
+
+				int[] extant = index.get(length).get(prefixes[i]);
+				int[] rules  = (extant == null) ? new int[1] : Arrays.copyOf(extant, extant.length + 1);
+				rules[rules.length - 1] = rule;
+
+				index.get(length).put(prefixes[i], rules);
+			}
+		}
+
+		private static int[] toArray(Vector<Integer> vector) {
+			int[] array = new int[vector.size()];
+
+			for (int i = 0; i < array.length; ++i) {
+				array[i] = vector.elementAt(i);
+			}
+
+			return array;
+		}
+
+		private static int lookup(HashMap<Integer, HashMap<Integer, int[]>> index, int address, int[][] found, int count) {
+			for (Integer length : index.keySet()) {
+				int[] rules = index.get(length).get(address & toMask(length));
+
+				if (rules != null) {
+					found[count++] = rules;
+				}
+			}
+
+			return count;
+		}
+
+		/**
+		 * @return the indexes of every rule which could match f, in order
+		 */
+		int[] getCandidates(Flow f) {
+			int[][] found = new int[bySrc.size() + byDst.size() + 1][];
+			int count = 0;
+
+			found[count++] = wildcard;
+			count = lookup(bySrc, f.src, found, count);
+			count = lookup(byDst, f.dst, found, count);
+
+			if (count == 1) {
+				return wildcard;
+			}
+
+			int total = 0;
+			for (int i = 0; i < count; ++i) {
+				total += found[i].length;
+			}
+
+			int[] candidates = new int[total];
+			int offset = 0;
+			for (int i = 0; i < count; ++i) {
+				System.arraycopy(found[i], 0, candidates, offset, found[i].length);
+				offset += found[i].length;
+			}
+
+			Arrays.sort(candidates);
+
+			//A rule matching several of a flow's prefixes is only checked once
+			int unique = 0;
+			for (int i = 0; i < candidates.length; ++i) {
+				if (i == 0 || candidates[i] != candidates[i - 1]) {
+					candidates[unique++] = candidates[i];
+				}
+			}
+
+			return Arrays.copyOf(candidates, unique);
+		}
+	}
+}
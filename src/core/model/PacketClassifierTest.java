@@ -0,0 +1,118 @@
+package core.model;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import core.model.PacketClassifier.Flow;
+
+/**
+ * The ruleset is laid out as a Router's is: INPUT, then FORWARD dispatching a server's subnet to its own chain,
+ * with a DNAT in front.  Between them, the flows cover ports, state, RETURN, DNAT, interfaces (known, unknown
+ * and negated) and rules we can't parse.
+ */
+public class PacketClassifierTest {
+
+	private PacketClassifier classifier;
+
+	@Before
+	public void setUp() throws UnknownHostException {
+		LinkedHashMap<String, LinkedHashMap<String, Vector<FirewallRule>>> tables = new LinkedHashMap<String, LinkedHashMap<String, Vector<FirewallRule>>>();
+
+		add(tables, "nat", "PREROUTING", "-p tcp -d 198.51.100.1 --dport 443 -j DNAT --to-destination 10.1.0.2:8080");
+
+		add(tables, "filter", "INPUT", "-i lo -j ACCEPT");
+		add(tables, "filter", "INPUT", "-p tcp -s 10.0.0.0/24 --dport 22 -j ACCEPT");
+		add(tables, "filter", "INPUT", "-m recent --name ssh --rcheck -j ACCEPT"); //We don't understand recent
+		add(tables, "filter", "INPUT", "-j DROP");
+
+		add(tables, "filter", "FORWARD", "-s 10.1.0.0/30 -j srv");
+		add(tables, "filter", "FORWARD", "-d 10.1.0.0/30 -j srv");
+		add(tables, "filter", "FORWARD", "-j DROP");
+
+		add(tables, "filter", "srv", "-p tcp -m state --state ESTABLISHED,RELATED -j ACCEPT");
+		add(tables, "filter", "srv", "-p tcp -s 10.0.0.0/24 -d 10.1.0.2 -m multiport --dports 80,443 -j ACCEPT");
+		add(tables, "filter", "srv", "-p udp --dport 53 -j RETURN");
+		add(tables, "filter", "srv", "! -i lan0 -p tcp --dport 8080 -j ACCEPT");
+		add(tables, "filter", "srv", "-j DROP");
+
+		classifier = new PacketClassifier(tables, null,
+				Arrays.asList(InetAddress.getByName("10.0.0.1"), InetAddress.getByName("198.51.100.1")));
+	}
+
+	@Test
+	public void whenSshIsFromTheLanShouldAccept() throws UnknownHostException {
+		assertVerdict("ACCEPT", flow("tcp", "10.0.0.5", "10.0.0.1", 22).setInterfaces("lan0", null));
+	}
+
+	@Test
+	public void whenSshIsFromOutsidePastAnUnparsedRuleShouldBeUncertainDrop() throws UnknownHostException {
+		assertVerdict("DROP?", flow("tcp", "203.0.113.9", "198.51.100.1", 22).setInterfaces("wan0", null));
+	}
+
+	@Test
+	public void whenInterfaceIsUnknownShouldBeUncertain() throws UnknownHostException {
+		//It may be lo
+		assertVerdict("ACCEPT?", flow("tcp", "10.0.0.5", "10.0.0.1", 22));
+	}
+
+	@Test
+	public void whenPortIsAllowedToServerShouldAccept() throws UnknownHostException {
+		assertVerdict("ACCEPT", flow("tcp", "10.0.0.5", "10.1.0.2", 443).setInterfaces("lan0", "lan0"));
+	}
+
+	@Test
+	public void whenPortIsNotAllowedToServerShouldDrop() throws UnknownHostException {
+		assertVerdict("DROP", flow("tcp", "10.0.0.5", "10.1.0.2", 25).setInterfaces("lan0", "lan0"));
+	}
+
+	@Test
+	public void whenReplyIsEstablishedShouldAccept() throws UnknownHostException {
+		assertVerdict("ACCEPT", new Flow("tcp", InetAddress.getByName("10.1.0.2"), 443, InetAddress.getByName("10.0.0.5"), 40000)
+				.setInterfaces("lan0", "lan0").setState("ESTABLISHED"));
+	}
+
+	@Test
+	public void whenFlowIsDnatedShouldUseTheNewDestination() throws UnknownHostException {
+		assertVerdict("ACCEPT", flow("tcp", "203.0.113.9", "198.51.100.1", 443).setInterfaces("wan0", "lan0"));
+	}
+
+	@Test
+	public void whenFlowIsDnatedOnAnUnknownInterfaceShouldBeUncertain() throws UnknownHostException {
+		assertVerdict("DROP?", flow("tcp", "203.0.113.9", "198.51.100.1", 443));
+	}
+
+	@Test
+	public void whenChainReturnsShouldCarryOnInItsCaller() throws UnknownHostException {
+		assertVerdict("DROP", flow("udp", "10.0.0.5", "10.1.0.2", 53).setInterfaces("lan0", "lan0"));
+	}
+
+	private void assertVerdict(String expected, Flow flow) {
+		PacketClassifier.Verdict verdict = classifier.classify(flow);
+
+		assertThat(verdict + " " + verdict.getTrace(), verdict.toString(), is(expected));
+	}
+
+	private static void add(LinkedHashMap<String, LinkedHashMap<String, Vector<FirewallRule>>> tables, String table, String chain, String rule) {
+		if (!tables.containsKey(table)) {
+			tables.put(table, new LinkedHashMap<String, Vector<FirewallRule>>());
+		}
+		if (!tables.get(table).containsKey(chain)) {
+			tables.get(table).put(chain, new Vector<FirewallRule>());
+		}
+
+		tables.get(table).get(chain).add(FirewallRule.parse(rule, rule));
+	}
+
+	private static Flow flow(String proto, String src, String dst, int dport) throws UnknownHostException {
+		return new Flow(proto, InetAddress.getByName(src), 40000, InetAddress.getByName(dst), dport);
+	}
+}
@@ -0,0 +1,84 @@
+package core.model;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps track of which machine each thread is building units for, while they're being built in parallel.
+ *
+ * Once the networking phase is over, a machine's units may only change that machine's own state. Everything
+ * else (other machines' requirements and interfaces, our ipsets) is read by other machines' threads, so has
+ * to stay exactly as networking left it. Anything which writes to it anyway throws, rather than the result
+ * depending on which thread happened to get there first.
+ *
+ * That makes a shared write a bug to fix, not something to lock around, so parallel building is only used
+ * when every server's profiles are ones whose units are known to keep to their own machine (see isKnownSafe).
+ */
+public final class ParallelBuild {
+
+	//Checked to only change their own machine's configs, processes, users and bind mounts when building units.
+	//Wifi isn't here, as its (commented out) config adds ifaces to the Router's DHCP.
+	private static final Set<String> SAFE_PROFILES = new HashSet<String>(Arrays.asList(
+			"ChrootJessie", "CiviCRM", "Drupal", "Drupal8", "DrupalCommons", "Email", "EmailServer", "Etherpad",
+			"Git", "Grav", "Horde", "HypervisorScripts", "Jail", "LetsEncrypt", "MISP", "MariaDB", "Msmtp",
+			"Nextcloud", "Nginx", "NodeJS", "OnionBalance", "OpenSocial", "PHP", "Piwik", "Redmine", "SMBServer",
+			"SSH", "SVN", "StrongSwan", "Tor", "Virtualisation", "WebXRay", "Webproxy", "Yourls", "media"));
+
+	private static volatile boolean running = false;
+
+	private static final ThreadLocal<String> building = new ThreadLocal<String>();
+
+	public static class SharedStateException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		SharedStateException(String message) {
+			super(message);
+		}
+	}
+
+	private ParallelBuild() {}
+
+	static void start() {
+		running = true;
+	}
+
+	static void stop() {
+		running = false;
+	}
+
+	static void building(String machine) {
+		building.set(machine);
+	}
+
+	static void done() {
+		building.remove();
+	}
+
+	/**
+	 * @param profile A server profile's name, as given in the config
+	 * @return whether its units are known to be safe to build in parallel with other machines'
+	 */
+	static boolean isKnownSafe(String profile) {
+		return SAFE_PROFILES.contains(profile);
+	}
+
+	/**
+	 * To be called before changing anything another machine's units may read.
+	 *
+	 * @param owner The machine the state belongs to, or null if any machine may read it
+	 * @param what  What's being changed, for the error
+	 */
+	public static void checkWrite(String owner, String what) {
+		if (!running) {
+			return;
+		}
+
+		String machine = building.get();
+
+		if (owner == null || !owner.equals(machine)) {
+			throw new SharedStateException((machine == null ? "Something" : machine) + " tried to change " + what
+					+ " while units were being built in parallel");
+		}
+	}
+}
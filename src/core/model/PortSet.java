@@ -0,0 +1,158 @@
+package core.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A set of TCP/UDP ports, stored as a sorted list of non-overlapping ranges.
+ *
+ * Most machines only need a handful of ports, which this holds in a few ints rather than a boxed Integer
+ * apiece, and it renders straight to the shortest iptables --dports list (e.g. "22,80,8000:8010").
+ */
+public class PortSet {
+
+	//[from, to] pairs, inclusive, sorted, with no two touching
+	private int[] ranges;
+	private int count;
+
+	public PortSet() {
+		this.ranges = new int[0];
+		this.count  = 0;
+	}
+
+	public PortSet(Integer... ports) {
+		this();
+		addAll(ports);
+	}
+
+	public PortSet(Collection<Integer> ports) {
+		this();
+
+		if (ports != null) {
+			addAll(ports.toArray(new Integer[ports.size()]));
+		}
+	}
+
+	public void add(int port) {
+		addRange(port, port);
+	}
+
+	public void addAll(Integer[] ports) {
+		for (Integer port : ports) {
+			if (port != null) {
+				add(port);
+			}
+		}
+	}
+
+	public void addAll(PortSet ports) {
+		for (int i = 0; i < ports.ranges.length; i += 2) {
+			addRange(ports.ranges[i], ports.ranges[i + 1]);
+		}
+	}
+
+	/**
+	 * Adds every port from from to to, inclusive, merging with any ranges it overlaps or touches
+	 */
+	public void addRange(int from, int to) {
+		if (from < 0 || to > 65535 || from > to) {
+			throw new IllegalArgumentException("Invalid port range " + from + ":" + to);
+		}
+
+		//First range which ends at or after from - 1, i.e. could merge with us
+		int first = 0;
+		while (first < ranges.length && ranges[first + 1] < from - 1) {
+			first += 2;
+		}
+
+		//Past the last range which starts at or before to + 1
+		int last = first;
+		while (last < ranges.length && ranges[last] <= to + 1) {
+			from = Math.min(from, ranges[last]);
+			to   = Math.max(to, ranges[last + 1]);
+			last += 2;
+		}
+
+		int[] merged = new int[ranges.length - (last - first) + 2];
+		System.arraycopy(ranges, 0, merged, 0, first);
+		merged[first]     = from;
+		merged[first + 1] = to;
+		System.arraycopy(ranges, last, merged, first + 2, ranges.length - last);
+
+		ranges = merged;
+
+		count = 0;
+		for (int i = 0; i < ranges.length; i += 2) {
+			count += ranges[i + 1] - ranges[i] + 1;
+		}
+	}
+
+	public boolean contains(int port) {
+		for (int i = 0; i < ranges.length && ranges[i] <= port; i += 2) {
+			if (port <= ranges[i + 1]) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return ranges.length == 0;
+	}
+
+	/**
+	 * @return how many ports are in this set
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return every port in this set, in order
+	 */
+	public Integer[] toArray() {
+		Integer[] ports = new Integer[count];
+		int p = 0;
+
+		for (int i = 0; i < ranges.length; i += 2) {
+			for (int port = ranges[i]; port <= ranges[i + 1]; ++port) {
+				ports[p++] = port;
+			}
+		}
+
+		return ports;
+	}
+
+	/**
+	 * @return the set as an iptables port list, with runs of ports as ranges
+	 */
+	@Override
+	public String toString() {
+		String ports = "";
+
+		for (int i = 0; i < ranges.length; i += 2) {
+			ports += (i == 0) ? "" : ",";
+			ports += ranges[i];
+
+			if (ranges[i + 1] > ranges[i] + 1) {
+				ports += ":" + ranges[i + 1];
+			}
+			else if (ranges[i + 1] == ranges[i] + 1) {
+				ports += "," + ranges[i + 1]; //A range of two is no shorter
+			}
+		}
+
+		return ports;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return (o instanceof PortSet) && Arrays.equals(ranges, ((PortSet) o).ranges);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(ranges);
+	}
+}
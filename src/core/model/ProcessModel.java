@@ -118,7 +118,7 @@ public class ProcessModel extends AModel {
 	 * Checks for unexpected processes
 	 *
 	 */
-	public Vector<IUnit> getUnits() {
+	public synchronized Vector<IUnit> getUnits() {
 		String grepString = "sudo ps -Awwo pid,user,comm,args | grep -v grep | grep -v 'ps -Awwo pid,user,comm,args$'";
 		Vector<IUnit> units = new Vector<IUnit>();
 				
@@ -141,7 +141,7 @@ public class ProcessModel extends AModel {
 	}
 
 
-	public void addProcess(String psString) {
+	public synchronized void addProcess(String psString) {
 		this.processStrings.addElement(psString);
 	}
 
@@ -16,6 +16,7 @@ import core.unit.SimpleUnit;
 import core.unit.fs.FileAppendUnit;
 import core.unit.fs.FilePermsUnit;
 import core.unit.fs.FileUnit;
+import core.unit.pkg.InstalledBatchUnit;
 import core.unit.pkg.InstalledUnit;
 import core.unit.pkg.RunningUnit;
 
@@ -27,6 +28,7 @@ import profile.Service;
 
 public class ServerModel extends MachineModel {
 	private Vector<IUnit> initUnits;
+	private Vector<IUnit> networkingUnits;
 	
 	private Vector<ServerModel> services;
 	
@@ -109,6 +111,14 @@ public class ServerModel extends MachineModel {
 
 	}
 	
+	/**
+	 * Gets our networking requirements, keeping the units for getUnits().  getNetworking() adds our ifaces and
+	 * changes other machines' state (e.g. our Router's firewall), so must only be run the once.
+	 */
+	void initNetworkingUnits() {
+		this.networkingUnits = getNetworking();
+	}
+	
 	@Override
 	public Vector<IUnit> getNetworking() {
 		Vector<IUnit> units = new Vector<IUnit>();
@@ -121,7 +131,7 @@ public class ServerModel extends MachineModel {
 		}
 		
 		if (networkModel.getData().getExternalIp(getLabel()) != null) {
-			addRequiredIngress("255.255.255.255", getRequiredListenTCP().toArray(new Integer[getRequiredListenTCP().size()]));
+			addRequiredIngress("255.255.255.255", getRequiredListenTCP());
 		}
 
 		addRequiredEgress("cdn.debian.net");
@@ -242,9 +252,10 @@ public class ServerModel extends MachineModel {
 		
 		units.addAll(2, firewall.getUnits());
 		units.addAll(2, bindMounts.getUnits());
-		units.addAll(2, aptSources.getUnits());
+		Vector<IUnit> aptSourcesUnits = aptSources.getUnits();
+		units.addAll(2, aptSourcesUnits);
 		units.addAll(2, getNetworkIfaces().getUnits());
-		units.addAll(2, getNetworking());
+		units.addAll(2, (networkingUnits != null) ? networkingUnits : getNetworking());
 		units.addAll(configFiles.getUnits());
 		units.addAll(runningProcesses.getUnits());
 		units.addAll(users.getUnits());
@@ -264,6 +275,43 @@ public class ServerModel extends MachineModel {
 				"",
 				"rm ~/script.pid; [ -f ~/script.pid ] && echo fail || echo pass", "pass", "pass"));		
 		
+		int batchIndex = 2;
+		if (!aptSourcesUnits.isEmpty()) {
+			batchIndex = units.lastIndexOf(aptSourcesUnits.lastElement()) + 1;
+		}
+		
+		//Install each run of packages in one go, where the run is.  Anything in between them may be something
+		//they need doing first, so we can't move them any further forward than that
+		Vector<Vector<InstalledUnit>> runs = new Vector<Vector<InstalledUnit>>();
+		Vector<Integer> runStarts = new Vector<Integer>();
+		Vector<InstalledUnit> run = new Vector<InstalledUnit>();
+		for (int j = batchIndex; j <= units.size(); ++j) {
+			IUnit unit = (j < units.size()) ? units.elementAt(j) : null;
+			
+			if (unit instanceof InstalledUnit && ((InstalledUnit) unit).isBatchable()) {
+				run.addElement((InstalledUnit) unit);
+				continue;
+			}
+			
+			if (run.size() > 1) {
+				runs.addElement(run);
+				runStarts.addElement(j - run.size());
+			}
+			run = new Vector<InstalledUnit>();
+		}
+		for (int j = runs.size() - 1; j >= 0; --j) {
+			units.insertElementAt(new InstalledBatchUnit("pkg_batch_" + j, runs.elementAt(j), true), runStarts.elementAt(j));
+		}
+		
+		//Check all of our packages in one go, once our sources are in place
+		Vector<InstalledUnit> pkgUnits = new Vector<InstalledUnit>();
+		for (IUnit unit : units) {
+			if (unit instanceof InstalledUnit) {
+				pkgUnits.addElement((InstalledUnit) unit);
+			}
+		}
+		units.insertElementAt(new InstalledBatchUnit(pkgUnits), batchIndex);
+		
 		//Make sure we have no duplication in our unit tests (this can happen occasionally)
 		units = new Vector<IUnit>(new LinkedHashSet<IUnit>(units));
 		
@@ -0,0 +1,164 @@
+package core.model;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Vector;
+
+import core.iface.IUnit;
+
+/**
+ * The dependencies between a machine's units, from each unit's precondition.
+ *
+ * Scripts run units in list order, so a unit's precondition has to have been run before it; this checks that's
+ * the case.  It can also generate a config script where consecutive long-running units are run as background
+ * jobs alongside each other.  Units often rely on what earlier units did without saying so in their precondition,
+ * so every outstanding job is waited on before the next unit which isn't itself long-running.
+ */
+class UnitGraph {
+
+	private String server;
+	private Vector<IUnit> units;
+
+	private LinkedHashMap<String, IUnit> labels;
+
+	UnitGraph(String server, Vector<IUnit> units) {
+		this.server = server;
+		this.units  = units;
+
+		this.labels = new LinkedHashMap<String, IUnit>();
+		for (IUnit unit : units) {
+			if (!labels.containsKey(unit.getLabel())) {
+				labels.put(unit.getLabel(), unit);
+			}
+		}
+	}
+
+	/**
+	 * @return a warning for each precondition which doesn't exist, which is only run after the unit relying on it,
+	 *         or which (eventually) depends on the unit itself
+	 */
+	Vector<String> check() {
+		Vector<String> warnings = new Vector<String>();
+		HashSet<String> seen = new HashSet<String>();
+		seen.add("proceed");
+
+		for (IUnit unit : units) {
+			String precondition = unit.getPrecondition();
+
+			if (precondition == null || precondition.equals("") || precondition.equals("proceed")) {
+				//Nothing to check
+			}
+			else if (!labels.containsKey(precondition)) {
+				warnings.add(server + ": " + unit.getLabel() + " depends on " + precondition + ", which doesn't exist. It will never be configured.");
+			}
+			else if (!seen.contains(precondition)) {
+				if (isCyclic(unit)) {
+					warnings.add(server + ": " + unit.getLabel() + " has a circular dependency on " + precondition + ". It will never be configured.");
+				}
+				else {
+					warnings.add(server + ": " + unit.getLabel() + " depends on " + precondition + ", which comes after it. It will fail the first time it's configured.");
+				}
+			}
+
+			seen.add(unit.getLabel());
+		}
+		
+		return warnings;
+	}
+
+	/**
+	 * @return whether following unit's preconditions leads back to unit (rather than just into a cycle elsewhere)
+	 */
+	private boolean isCyclic(IUnit unit) {
+		HashSet<String> chain = new HashSet<String>();
+		IUnit current = labels.get(unit.getPrecondition());
+
+		while (current != null && chain.add(current.getLabel())) {
+			if (current.getLabel().equals(unit.getLabel())) {
+				return true;
+			}
+
+			current = labels.get(current.getPrecondition());
+		}
+
+		return false;
+	}
+
+	/**
+	 * Writes out the config for every unit, running up to width long-running units at once
+	 */
+	void genConfig(Writer out, Integer width) throws IOException {
+		LinkedHashSet<String> running = new LinkedHashSet<String>();
+
+		out.write("ts_width=" + width + "; ts_dir=$(mktemp -d);\n");
+		out.write("ts_spawn() {\n");
+		out.write("\twhile [ $(jobs -rp | wc -l) -ge $ts_width ] ; do wait -n; done ;\n");
+		out.write("}\n");
+		//Background jobs can't touch our variables, so they write out what they've changed for us to read back in
+		out.write("ts_save() {\n");
+		out.write("\t{\n");
+		out.write("\t\tprintf '%s=%q;\\n' \"$1\" \"${!1}\";\n");
+		out.write("\t\tprintf 'pass=$((pass+%d)); fail=$((fail+%d));\\n' \"$pass\" \"$fail\";\n");
+		out.write("\t\tprintf 'fail_string=\"${fail_string}\"%q;\\n' \"$fail_string\";\n");
+		out.write("\t} > \"$ts_dir/$1.state\";\n");
+		out.write("}\n");
+		out.write("ts_join() {\n");
+		out.write("\twait \"$2\" 2>/dev/null;\n");
+		out.write("\tcat \"$ts_dir/$1.out\";\n");
+		out.write("\t[ -f \"$ts_dir/$1.state\" ] && . \"$ts_dir/$1.state\";\n");
+		out.write("}\n");
+
+		for (IUnit unit : units) {
+			String label = unit.getLabel();
+
+			if (!unit.isLongRunning()) {
+				//We can't know what this relies on the jobs having done, so they all have to be finished first
+				for (String job : running) {
+					join(job, out);
+				}
+				running.clear();
+			}
+			else {
+				if (running.contains(unit.getPrecondition())) {
+					join(unit.getPrecondition(), out);
+					running.remove(unit.getPrecondition());
+				}
+				if (running.contains(label)) {
+					join(label, out);
+					running.remove(label);
+				}
+			}
+
+			out.write("#============ " + label + " =============\n");
+
+			if (unit.isLongRunning()) {
+				out.write("ts_spawn;\n");
+				out.write("(\n");
+				out.write("pass=0; fail=0; fail_string=;\n");
+				unit.genConfig(out);
+				out.write("\nts_save " + label + ";\n");
+				out.write(") > \"$ts_dir/" + label + ".out\" 2>&1 &\n");
+				out.write("ts_pid_" + label + "=$!;\n");
+
+				running.add(label);
+			}
+			else {
+				unit.genConfig(out);
+				out.write("\n");
+			}
+		}
+
+		for (String label : running) {
+			join(label, out);
+		}
+
+		out.write("rm -rf \"$ts_dir\";\n");
+	}
+
+	private void join(String label, Writer out) throws IOException {
+		out.write("ts_join " + label + " \"$ts_pid_" + label + "\";\n");
+	}
+}
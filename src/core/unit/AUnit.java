@@ -1,5 +1,6 @@
 package core.unit;
 
+import java.io.IOException;
 import java.util.Vector;
 
 import core.iface.IProfile;
@@ -35,66 +36,88 @@ public abstract class AUnit implements IUnit {
 		return label;
 	}
 
+	public boolean isLongRunning() {
+		return false;
+	}
+
 	public Vector<IProfile> getUnits(String server, NetworkModel networkModel) {
 		return null;
 	}
 
-	public String genAudit(boolean quiet) {
-		String auditString = getLabel() + "=0;\n";
-		auditString += this.getAudit();
-		auditString += "if [ \"$" + getLabel() + "\" = \"1\" ] ; then\n";
-		if (!quiet)
-			auditString += "\techo pass " + getLabel() + "\n";
-		auditString += "\t" + "((pass++))\n";
-		auditString += "else\n";
-		if (!quiet)
-			auditString += "\techo fail " + getLabel() + "\n";
-		auditString += "\t" + "((fail++))\n";
-		auditString += "\t" + "fail_string=\"${fail_string}\n" + getLabel();
-		auditString += " failed with the message:\n";
-		auditString += "\\\"${out}\\\"\n";
-		auditString += this.getMessage() + "\n\"\n";
-		auditString += "fi ;";
-		return auditString;
+	/**
+	 * The helper functions which every unit's audit and config rely on.  This must be output once,
+	 * at the top of every script.
+	 */
+	public static String getLibrary() {
+		StringBuilder lib = new StringBuilder();
+		//ts_test label pass|fail test - sets label to 1 if $out matching test is a pass/fail
+		lib.append("ts_test() {\n");
+		lib.append("\tif [ \"$out\" = \"$3\" ] ; then [ \"$2\" = \"pass\" ] ; else [ \"$2\" = \"fail\" ] ; fi && printf -v \"$1\" 1 || printf -v \"$1\" 0;\n");
+		lib.append("}\n");
+		//ts_result label [quiet] - counts the result, returning non-zero on a fail
+		lib.append("ts_result() {\n");
+		lib.append("\tif [ \"${!1}\" = \"1\" ] ; then\n");
+		lib.append("\t\t[ -n \"$2\" ] || echo pass $1;\n");
+		lib.append("\t\t((pass++));\n");
+		lib.append("\t\treturn 0;\n");
+		lib.append("\tfi ;\n");
+		lib.append("\t[ -n \"$2\" ] || echo fail $1;\n");
+		lib.append("\t((fail++));\n");
+		lib.append("\treturn 1;\n");
+		lib.append("}\n");
+		//ts_needs label precondition - returns zero if label has failed, and should be configured
+		lib.append("ts_needs() {\n");
+		lib.append("\tif [ \"${!1}\" = \"1\" ] ; then\n");
+		lib.append("\t\techo pass $1;\n");
+		lib.append("\t\t((pass++));\n");
+		lib.append("\t\treturn 1;\n");
+		lib.append("\telif [ -z \"$2\" ] || [ \"${!2}\" != \"1\" ] ; then\n");
+		lib.append("\t\tprintf -v \"$1\" 0;\n");
+		lib.append("\t\techo \"fail $1 PRECONDITION FAILED $2\";\n");
+		lib.append("\t\treturn 1;\n");
+		lib.append("\tfi ;\n");
+		lib.append("\techo \"fail $1 CONFIGURING\";\n");
+		lib.append("\treturn 0;\n");
+		lib.append("}\n");
+		return lib.toString();
+	}
+
+	public void genAudit(Appendable out, boolean quiet) throws IOException {
+		out.append(getLabel()).append("=0;\n");
+		out.append(this.getAudit());
+		//The message is only expanded on a fail, as some of them run commands
+		out.append("ts_result ").append(getLabel()).append(quiet ? " quiet" : "").append(" || fail_string=\"${fail_string}\n").append(getLabel());
+		out.append(" failed with the message:\n");
+		out.append("\\\"${out}\\\"\n");
+		out.append(this.getMessage()).append("\n\"\n");
 	}
 
-	public String genConfig() {
-		String configString = this.getAudit();
-		configString += "if [ \"$" + getLabel() + "\" != \"1\" ] ; then\n";
-		configString += "if [ \"$" + getPrecondition() + "\" = \"1\" ] ; then\n";
-		configString += "\t" + "echo 'fail " + getLabel() + " CONFIGURING'\n";
-		configString += "\t" + getConfig() + "\n";
-		configString += "\t" + "echo 'fail " + getLabel() + " RETESTING'\n";
-		configString += this.genAudit(false);
-		configString += "else\n";
-		configString += "\t" + getLabel() + "=0;\n";
-		configString += "\t" + "echo 'fail " + getLabel() + " PRECONDITION FAILED " + getPrecondition() + "'\n";
-		configString += "fi ;\n";
-		configString += "else\n";
-		configString += "\techo pass " + getLabel() + "\n";
-		configString += "\t" + "((pass++))\n";
-		configString += "fi ;\n";
-		return configString;
+	public void genConfig(Appendable out) throws IOException {
+		out.append(this.getAudit());
+		out.append("if ts_needs ").append(getLabel()).append(" ").append(getPrecondition()).append(" ; then\n");
+		out.append("\t").append(getConfig()).append("\n");
+		out.append("\techo 'fail ").append(getLabel()).append(" RETESTING'\n");
+		this.genAudit(out, false);
+		out.append("fi ;\n");
 	}
 
-	public String genDryRun() {
-		String dryrunString = this.getAudit();
-		dryrunString += "if [ \"$" + getLabel() + "\" != \"1\" ] ; then\n";
-		dryrunString += "\t" + "echo 'fail " + getLabel() + " DRYRUN'\n";
-		dryrunString += "\t" + "echo '" + getConfig() + "';\n";
-		dryrunString += this.getDryRun();
-		dryrunString += "\t" + "((fail++))\n";
-		dryrunString += "\t" + "fail_string=\"$fail_string\n" + getLabel() + "\"\n";
-		dryrunString += "else\n";
-		dryrunString += "\techo pass " + getLabel() + "\n";
-		dryrunString += "\t" + "((pass++))\n";
-		dryrunString += "fi ;\n";
-		return dryrunString;
+	public void genDryRun(Appendable out) throws IOException {
+		out.append(this.getAudit());
+		out.append("if [ \"$").append(getLabel()).append("\" != \"1\" ] ; then\n");
+		out.append("\techo 'fail ").append(getLabel()).append(" DRYRUN'\n");
+		out.append("\techo '").append(getConfig()).append("';\n");
+		out.append(this.getDryRun());
+		out.append("\t((fail++))\n");
+		out.append("\tfail_string=\"$fail_string\n").append(getLabel()).append("\"\n");
+		out.append("else\n");
+		out.append("\techo pass ").append(getLabel()).append("\n");
+		out.append("\t((pass++))\n");
+		out.append("fi ;\n");
 	}
 
 	protected abstract String getAudit();
 
-	protected abstract String getPrecondition();
+	public abstract String getPrecondition();
 
 	protected abstract String getConfig();
 
@@ -14,7 +14,7 @@ public class ComplexUnit extends AUnit {
 		return this.audit;
 	}
 
-	protected String getPrecondition() {
+	public String getPrecondition() {
 		return precondition;
 	}
 
@@ -44,18 +44,10 @@ public class SimpleUnit extends ComplexUnit {
 	}
 
 	protected String getAudit() {
-		String auditString = "out=$(" + super.getAudit() + ");\n";
-		auditString += "test=\"" + getTest() + "\";\n";
-		
-		if (getResult().equals("fail"))
-			auditString += "if [ \"$out\" = \"$test\" ] ; then\n";
-		else
-			auditString += "if [ \"$out\" != \"$test\" ] ; then\n";
-		auditString += "\t" + getLabel() + "=0;\n";
-		auditString += "else\n";
-		auditString += "\t" + getLabel() + "=1;\n";
-		auditString += "fi ;\n";
-		return auditString;
+		StringBuilder auditString = new StringBuilder();
+		auditString.append("out=$(").append(super.getAudit()).append(");\n");
+		auditString.append("ts_test ").append(getLabel()).append(" ").append(getResult()).append(" \"").append(getTest()).append("\";\n");
+		return auditString.toString();
 	}
 
 	protected String getTest() {
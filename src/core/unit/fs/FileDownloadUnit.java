@@ -29,5 +29,9 @@ public class FileDownloadUnit extends SimpleUnit {
 	public FileDownloadUnit(String name, String precondition, String url, String path) {
 		this(name, precondition, url, path, "Couldn't download " + url + ".  Sorry about that!");
 	}
-	
+
+	public boolean isLongRunning() {
+		return true;
+	}
+
 }
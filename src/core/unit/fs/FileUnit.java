@@ -1,5 +1,9 @@
 package core.unit.fs;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import core.unit.SimpleUnit;
 
 public class FileUnit extends SimpleUnit {
@@ -13,10 +17,7 @@ public class FileUnit extends SimpleUnit {
 	 * @param message      Custom fail message
 	 */
 	public FileUnit(String name, String precondition, String text, String path, String message) {
-		super(name, precondition,
-				"sudo [ -f " + path + " ] || sudo touch " + path + ";"
-				+ "echo \"" + text + "\" | sudo tee " + path + " > /dev/null;",
-				"sudo cat " + path + " 2>&1;", text, "pass", message);
+		this(name, precondition, text, path, message, false);
 	}
 
 	/**
@@ -30,4 +31,79 @@ public class FileUnit extends SimpleUnit {
 		this(name, precondition, text, path, "Couldn't create " + path + ".  This is a pretty serious problem!");
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Unit test for creating/modifying a whole file, optionally auditing against a hash of its contents.
+	 * Hashing is worth it for large files, as the text is then only in the script once, and is never compared in bash.
+	 * If the text relies on being expanded on the machine (unescaped $ or `) it can't be hashed here, so is audited in full.
+	 * @param name         Name of unit test
+	 * @param precondition Precondition unit test name
+	 * @param text         Text to put into the file
+	 * @param path         Path to the file
+	 * @param message      Custom fail message
+	 * @param hash         Audit by SHA-256?
+	 */
+	public FileUnit(String name, String precondition, String text, String path, String message, boolean hash) {
+		this(name, precondition, text, path, message, hash ? getHash(text) : null);
+	}
+
+	/**
+	 * @param hash The text's hash, worked out once up front as the text may be large, or null to audit in full
+	 */
+	private FileUnit(String name, String precondition, String text, String path, String message, String hash) {
+		super(name, precondition,
+				"sudo [ -f " + path + " ] || sudo touch " + path + ";"
+				+ "echo \"" + text + "\" | sudo tee " + path + " > /dev/null;",
+				(hash != null) ? "sudo sha256sum " + path + " 2>&1 | cut -d' ' -f1;" : "sudo cat " + path + " 2>&1;",
+				(hash != null) ? hash : text, "pass", message);
+	}
+
+	/**
+	 * Hashes what echo will actually write out, which is the text with bash's double-quote escaping undone,
+	 * plus a newline
+	 * @return hex SHA-256, or null if the text would be expanded on the machine
+	 */
+	public static String getHash(String text) {
+		StringBuilder contents = new StringBuilder();
+
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+
+			if (c == '\\' && i + 1 < text.length()) {
+				char next = text.charAt(i + 1);
+
+				if (next == '$' || next == '`' || next == '"' || next == '\\') {
+					contents.append(next);
+					++i;
+					continue;
+				}
+				else if (next == '\n') {
+					++i;
+					continue;
+				}
+			}
+			else if (c == '$' || c == '`') {
+				return null;
+			}
+
+			contents.append(c);
+		}
+		contents.append('\n');
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(contents.toString().getBytes(StandardCharsets.UTF_8));
+
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+
+		return null;
+	}
+
+}
@@ -31,5 +31,9 @@ public class GitCloneUnit extends SimpleUnit {
 	public GitCloneUnit(String name, String precondition, String url, String path) {
 		this(name, precondition, url, path, "Couldn't clone the repository " + url);
 	}
-	
+
+	public boolean isLongRunning() {
+		return true;
+	}
+
 }
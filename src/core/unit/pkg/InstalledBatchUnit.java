@@ -0,0 +1,99 @@
+package core.unit.pkg;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Vector;
+
+import core.unit.ComplexUnit;
+
+/**
+ * Checks the status of a set of packages with a single dpkg-query, into $pkg_status.
+ *
+ * A status-only batch covers every package a machine wants, up front.  An installing batch goes in front of a run
+ * of consecutive package units, and when configuring installs whatever's missing from that run in a single apt
+ * transaction.  As it sits where the run was, anything the packages rely on having happened first (e.g. debconf
+ * answers) still has.  If apt would have to remove anything to install the run, it's left alone, so conflicting
+ * packages never share a transaction.
+ *
+ * It doesn't report a pass or fail of its own; each InstalledUnit still does that, and will try to install its
+ * package on its own if the batch didn't manage it.
+ */
+public class InstalledBatchUnit extends ComplexUnit {
+
+	private LinkedHashSet<String> pkgs;
+	private boolean install;
+
+	/**
+	 * Status only
+	 * 
+	 * @param units All of a machine's package units
+	 */
+	public InstalledBatchUnit(Vector<InstalledUnit> units) {
+		this("pkg_batch", units, false);
+	}
+
+	/**
+	 * @param name    Unit name
+	 * @param units   The package units to check
+	 * @param install Whether to install any which are missing, when configuring.  They should all be batchable.
+	 */
+	public InstalledBatchUnit(String name, Vector<InstalledUnit> units, boolean install) {
+		super(name, "proceed", "", "");
+
+		this.pkgs    = new LinkedHashSet<String>();
+		this.install = install;
+
+		for (InstalledUnit unit : units) {
+			pkgs.add(unit.getPackage());
+		}
+	}
+
+	static String getStatusQuery(String pkgs) {
+		return "dpkg-query -W -f=\"\\${Package} \\${Status}\\n\" " + pkgs + " 2>/dev/null";
+	}
+
+	private String getStatus() {
+		if (install) {
+			//Don't lose what the status-only batch found out about everything else
+			return "pkg_status=\"$pkg_status\"$'\\n'\"$(" + getStatusQuery(String.join(" ", pkgs)) + ")\";\n";
+		}
+		
+		return "pkg_status=$(" + getStatusQuery(String.join(" ", pkgs)) + ");\n";
+	}
+
+	public void genAudit(Appendable out, boolean quiet) throws IOException {
+		if (!install) {
+			out.append(getStatus());
+		}
+	}
+
+	public void genConfig(Appendable out) throws IOException {
+		if (!install) {
+			out.append(getStatus());
+			return;
+		}
+
+		out.append("pkg_missing=;\n");
+		out.append("for pkg in ").append(String.join(" ", pkgs)).append(" ; do\n");
+		out.append("\techo \"$pkg_status\" | grep -qxF -e \"$pkg install ok installed\" -e \"$pkg hold ok installed\" || pkg_missing=\"$pkg_missing $pkg\";\n");
+		out.append("done ;\n");
+		out.append("if [ -n \"$pkg_missing\" ] ; then\n");
+		out.append("\texport DEBIAN_FRONTEND=noninteractive;\n");
+		out.append("\t[ \"$pkg_updated\" = \"1\" ] || sudo apt-get update; pkg_updated=1;\n");
+		out.append("\tif sudo -E apt-get install --assume-yes --simulate$pkg_missing 2>&1 | grep -q '^Remv ' ; then\n");
+		out.append("\t\techo 'fail ").append(getLabel()).append(" CONFLICTS'$pkg_missing\n");
+		out.append("\telse\n");
+		out.append("\t\techo 'fail ").append(getLabel()).append(" CONFIGURING'$pkg_missing\n");
+		out.append("\t\tsudo -E apt-get install --assume-yes$pkg_missing;\n");
+		out.append("\t\t").append(getStatus());
+		out.append("\tfi ;\n");
+		out.append("fi ;\n");
+	}
+
+	public void genDryRun(Appendable out) throws IOException {
+		if (!install) {
+			out.append(getStatus());
+		}
+	}
+
+}
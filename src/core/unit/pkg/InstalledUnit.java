@@ -4,13 +4,27 @@ import core.unit.SimpleUnit;
 
 public class InstalledUnit extends SimpleUnit {
 
+	private String pkg;
+
+	/**
+	 * Installs a package.
+	 * The audit checks $pkg_status (filled once per run by InstalledBatchUnit) first, and only asks dpkg directly
+	 * if the package isn't in there, so this still works on its own, or after a package's been installed.
+	 * @param name         Unit test name
+	 * @param precondition Precondition unit test
+	 * @param pkg          Package to install
+	 * @param message      Custom fail message
+	 */
 	public InstalledUnit(String name, String precondition, String pkg, String message) {
 		super(name + "_installed", precondition,
 				"export DEBIAN_FRONTEND=noninteractive; "
-				+ "sudo apt-get update;"
+				+ "[ \"$pkg_updated\" = \"1\" ] || sudo apt-get update; pkg_updated=1;"
 				+ "sudo -E apt-get install --assume-yes " + pkg + ";",
-				"dpkg-query --status " + pkg + " 2>&1 | grep -E \"Status: (install|hold) ok installed\";", "", "fail",
+				"echo \"$pkg_status\" | " + getStatusGrep(pkg) + " || "
+				+ InstalledBatchUnit.getStatusQuery(pkg) + " | " + getStatusGrep(pkg) + ";", "", "fail",
 				message);
+		
+		this.pkg = pkg;
 	}
 
 	public InstalledUnit(String name, String pkg) {
@@ -21,4 +35,19 @@ public class InstalledUnit extends SimpleUnit {
 		this(name, precondition, pkg, "Couldn't install " + pkg + ".  This is pretty serious.");
 	}
 
-}
\ No newline at end of file
+	String getPackage() {
+		return this.pkg;
+	}
+
+	/**
+	 * Only packages with no precondition other than the run itself can be installed up front, in the batch
+	 */
+	public boolean isBatchable() {
+		return this.precondition.equals("proceed");
+	}
+
+	private static String getStatusGrep(String pkg) {
+		return "grep -xF -e \"" + pkg + " install ok installed\" -e \"" + pkg + " hold ok installed\"";
+	}
+
+}
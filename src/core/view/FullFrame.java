@@ -4,7 +4,10 @@ import java.awt.Color;
 import java.awt.Component;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.net.InetAddress;
+import java.util.Vector;
 
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
@@ -31,7 +34,11 @@ import core.model.ThornsecModel;
 
 public class FullFrame {
 
+	private Vector<TextAreaOutputStream> outputs;
+
 	public FullFrame(ThornsecModel model) {
+		outputs = new Vector<TextAreaOutputStream>();
+		
 		JTabbedPane jtp = new JTabbedPane();
 		for (String network : model.getNetworkLabels()) {
 			jtp.add(network, getNetworkPane(model.getNetworkModel(network)));
@@ -40,6 +47,14 @@ public class FullFrame {
 		JFrame frame = new JFrame("Thornsec");
 		frame.setExtendedState(frame.getExtendedState() | JFrame.MAXIMIZED_BOTH);
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		//Get everything that's been output into its log before we exit
+		frame.addWindowListener(new WindowAdapter() {
+			public void windowClosing(WindowEvent e) {
+				for (TextAreaOutputStream out : outputs) {
+					out.close();
+				}
+			}
+		});
 		frame.setContentPane(jtp);
 		frame.pack();
 		frame.setVisible(true);
@@ -59,7 +74,8 @@ public class FullFrame {
 
 		JTextArea area = new JTextArea();
 		area.setEditable(false);
-		TextAreaOutputStream out = new TextAreaOutputStream(area);
+		TextAreaOutputStream out = new TextAreaOutputStream(area, 10000, "./" + model.getLabel() + "_output.log");
+		outputs.add(out);
 		
 		//jtp.add("Network Info", getInfoPanel(model));
 		jtp.add("Servers", getServerPanel(model, out));
@@ -1,20 +1,252 @@
 package core.view;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
 
+/**
+ * Writes to a JTextArea, for the console.
+ *
+ * Writes can come from any number of threads at once.  Each thread's bytes are decoded on that thread, with its
+ * own decoder, so one thread's write can't land in the middle of another's multibyte character.  The text then
+ * goes into a shared buffer, which is drained into the area on the EDT, at most FRAME_RATE times a second, so
+ * Swing sees one append per frame rather than one per write.  If the buffer fills up, writers block until the
+ * next frame.
+ *
+ * The area is capped at a number of lines; if given a log file, everything written is also kept there.
+ */
 public class TextAreaOutputStream extends OutputStream {
 
+	private static final int FRAME_RATE    = 20;
+	private static final int MAX_PENDING   = 1024 * 1024; //chars waiting for the next frame
+	private static final int DEFAULT_LINES = 10000;
+
 	private JTextArea area;
+	private Integer maxLines;
+	private OutputStream log;
+
+	private Timer timer;
+
+	private ReentrantLock lock;
+	private Condition notFull;
+	private StringBuilder pending;
+	private boolean closed;
+
+	private ThreadLocal<Decoder> decoders;
+
+	/**
+	 * A single writer's decoder, and any partial character it's written
+	 */
+	private static class Decoder {
+		private CharsetDecoder decoder;
+		private ByteBuffer partial;
+
+		Decoder() {
+			this.decoder = StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.partial = ByteBuffer.allocate(0);
+		}
+
+		String decode(byte[] b, int off, int len) {
+			ByteBuffer bytes = ByteBuffer.allocate(partial.remaining() + len);
+			bytes.put(partial);
+			bytes.put(b, off, len);
+			bytes.flip();
+
+			CharBuffer chars = CharBuffer.allocate(bytes.remaining());
+			decoder.decode(bytes, chars, false);
+			chars.flip();
+
+			//Anything left is the start of a multibyte character, for the next write to finish
+			partial = bytes.slice();
+
+			return chars.toString();
+		}
+	}
 
 	public TextAreaOutputStream(JTextArea area) {
-		this.area = area;
+		this(area, DEFAULT_LINES, null);
+	}
+
+	/**
+	 * @param area     The area to write to
+	 * @param maxLines Maximum number of lines to keep in the area
+	 * @param logPath  File to write the full, uncapped, output to (null for none)
+	 */
+	public TextAreaOutputStream(JTextArea area, Integer maxLines, String logPath) {
+		this.area     = area;
+		this.maxLines = maxLines;
+		this.log      = null;
+
+		if (logPath != null) {
+			try {
+				this.log = new BufferedOutputStream(new FileOutputStream(logPath, true));
+			}
+			catch (FileNotFoundException e) {
+				System.out.println("Couldn't open " + logPath + " for logging output: " + e.getMessage());
+			}
+		}
+
+		this.lock    = new ReentrantLock();
+		this.notFull = lock.newCondition();
+		this.pending = new StringBuilder();
+		this.closed  = false;
+
+		this.decoders = new ThreadLocal<Decoder>() {
+			protected Decoder initialValue() {
+				return new Decoder();
+			}
+		};
+
+		this.timer = new Timer(1000 / FRAME_RATE, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				drain();
+			}
+		});
+		this.timer.start();
 	}
 
 	public void write(int b) throws IOException {
-		area.append(String.valueOf((char) b));
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+
+		String text = decoders.get().decode(b, off, len);
+
+		if (text.isEmpty()) {
+			return;
+		}
+
+		//The EDT would be waiting on itself, so it's always let through
+		boolean edt = SwingUtilities.isEventDispatchThread();
+
+		lock.lock();
+
+		try {
+			while (!edt && pending.length() >= MAX_PENDING && !closed) {
+				notFull.await();
+			}
+
+			//Nothing's going to show it
+			if (closed) {
+				return;
+			}
+
+			pending.append(text);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops updating the area, and closes the log once everything written so far is in it
+	 */
+	public void close() {
+		timer.stop();
+
+		lock.lock();
+		try {
+			closed = true;
+			notFull.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		drain();
+
+		if (log != null) {
+			try {
+				log.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			log = null;
+		}
+	}
+
+	/**
+	 * Runs on the EDT
+	 */
+	private void drain() {
+		String text;
+
+		lock.lock();
+		try {
+			if (pending.length() == 0) {
+				return;
+			}
+
+			text = pending.toString();
+			pending.setLength(0);
+			notFull.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		log(text);
+
+		area.append(text);
+		trim();
+	}
+
+	private void log(String text) {
+		if (log == null) {
+			return;
+		}
+
+		try {
+			log.write(text.getBytes(StandardCharsets.UTF_8));
+			log.flush();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void trim() {
+		int excess = area.getLineCount() - maxLines;
+
+		if (excess <= 0) {
+			return;
+		}
+
+		try {
+			area.replaceRange("", 0, area.getLineStartOffset(excess));
+		}
+		catch (BadLocationException e) {
+			e.printStackTrace();
+		}
 	}
 
 }
@@ -0,0 +1,297 @@
+package profile;
+
+import java.util.Vector;
+
+import core.StringUtils;
+import core.iface.IUnit;
+import core.model.FirewallModel;
+import core.model.MachineModel;
+import core.model.NetworkModel;
+import core.model.ServerModel;
+import core.profile.AStructuredProfile;
+import core.unit.SimpleUnit;
+import core.unit.fs.FilePermsUnit;
+import core.unit.fs.FileUnit;
+
+/**
+ * Keeps a rolling record of what each machine has sent and received, on the router itself.
+ *
+ * A collector samples (and zeroes) the firewall's per-machine counters every few seconds, and adds each sample
+ * to minute, hour and day buckets.  Each resolution is a fixed-size ring of buckets on disk, with a line per machine
+ * in each, so the store never grows, however long it runs, and adding or removing a machine leaves everyone
+ * else's history alone.  Buckets are kept in memory, and each is written out whole, so a sample costs a handful of
+ * processes however many machines there are.
+ *
+ * Nothing else should read the counters directly; ask the store with the bandwidth script instead.
+ */
+public class Bandwidth extends AStructuredProfile {
+
+	public static final String QUERY = "/usr/local/bin/bandwidth";
+	
+	private static final String COLLECTOR = "/usr/local/bin/bandwidth-collector";
+	private static final String DIR       = "/var/lib/bandwidth";
+	
+	private static final Integer DEFAULT_INTERVAL = 10; //seconds
+
+	public Bandwidth(ServerModel me, NetworkModel networkModel) {
+		super("bandwidth", me, networkModel);
+	}
+
+	public Vector<IUnit> getPersistentConfig() {
+		Vector<IUnit> units = new Vector<IUnit>();
+		
+		String interval = networkModel.getData().getProperty(me.getLabel(), "bandwidthinterval", false);
+		
+		Vector<String> labels  = new Vector<String>();
+		Vector<String> egress  = new Vector<String>();
+		Vector<String> ingress = new Vector<String>();
+		
+		for (MachineModel machine : networkModel.getAllMachines()) {
+			labels.add(machine.getLabel());
+			egress.add(StringUtils.stringToAlphaNumeric(machine.getEgressChain(), "_"));
+			ingress.add(StringUtils.stringToAlphaNumeric(machine.getIngressChain(), "_"));
+		}
+		
+		String collector = "";
+		collector += "#!/bin/bash\n";
+		collector += "#Samples each machine's traffic into fixed-size ring buffers, one per resolution.\n";
+		collector += "#We're the only thing which reads (and zeroes) the kernel's counters; everything else should query us\n";
+		collector += "DIR=" + DIR + "\n";
+		collector += "INTERVAL=" + ((interval == null) ? DEFAULT_INTERVAL : Integer.parseInt(interval)) + "\n";
+		collector += "\n";
+		collector += "MACHINES=(" + String.join(" ", labels) + ")\n";
+		collector += "EGRESS=(" + String.join(" ", egress) + ")\n";
+		collector += "INGRESS=(" + String.join(" ", ingress) + ")\n";
+		collector += "\n";
+		collector += "RINGS=(sample minute hour day)\n";
+		collector += "STEPS=(\\${INTERVAL} 60 3600 86400)\n";
+		collector += "SLOTS=(360 1440 744 366)\n";
+		collector += "\n";
+		collector += "#Buckets which haven't finished yet are saved this often, in seconds, so a query doesn't have to wait for them\n";
+		collector += "FLUSH=60\n";
+		collector += "\n";
+		collector += "#Each ring is a directory with a file per slot.  A slot has a line per machine: the bucket's start time, the machine,\n";
+		collector += "#then bytes up and down.  Buckets are read and written whole, and machines can come and go without touching anyone else's history\n";
+		collector += "declare -A bytes\n";
+		collector += "declare -A index\n";
+		collector += "declare -A up\n";
+		collector += "declare -A down\n";
+		collector += "declare -A bucket\n";
+		collector += "\n";
+		collector += "for i in \\${!MACHINES[@]}; do\n";
+		collector += "    index[\\${MACHINES[\\$i]}]=\\$i\n";
+		collector += "done\n";
+		collector += "\n";
+		collector += "snapshot() {\n";
+		collector += "    bytes=()\n";
+		collector += "    while read chain count; do\n";
+		collector += "        bytes[\\$chain]=\\$count\n";
+		collector += "    done < <(" + getSnapshot() + ")\n";
+		collector += "}\n";
+		collector += "\n";
+		collector += "init() {\n";
+		collector += "    mkdir -p \\$DIR\n";
+		collector += "\n";
+		collector += "    #Older stores kept fixed-width records in a ring per machine (or one for everyone), which we don't read any more\n";
+		collector += "    rm -f \\$DIR/machines\n";
+		collector += "    for old in \\$DIR/*; do\n";
+		collector += "        [ -f \\$old/minute ] && rm -rf \\$old\n";
+		collector += "    done\n";
+		collector += "\n";
+		collector += "    for r in \\${!RINGS[@]}; do\n";
+		collector += "        [ -f \\$DIR/\\${RINGS[\\$r]} ] && rm -f \\$DIR/\\${RINGS[\\$r]}\n";
+		collector += "        mkdir -p \\$DIR/\\${RINGS[\\$r]}\n";
+		collector += "    done\n";
+		collector += "\n";
+		collector += "    touch \\$DIR/started\n";
+		collector += "}\n";
+		collector += "\n";
+		collector += "#Picks up a bucket from where it was left, or starts it afresh\n";
+		collector += "load() {\n";
+		collector += "    local r=\\$1\n";
+		collector += "    local file=\\$DIR/\\${RINGS[\\$r]}/\\$(( (\\$2 / \\${STEPS[\\$r]}) % \\${SLOTS[\\$r]} ))\n";
+		collector += "    local start machine u d\n";
+		collector += "\n";
+		collector += "    bucket[\\$r]=\\$2\n";
+		collector += "    for i in \\${!MACHINES[@]}; do\n";
+		collector += "        up[\\$r,\\$i]=0\n";
+		collector += "        down[\\$r,\\$i]=0\n";
+		collector += "    done\n";
+		collector += "\n";
+		collector += "    [ -f \\$file ] || return 0\n";
+		collector += "    while read start machine u d; do\n";
+		collector += "        [ \\\"\\$start\\\" == \\\"\\$2\\\" ] && [ -n \\\"\\$machine\\\" ] && [ -n \\\"\\${index[\\$machine]}\\\" ] || continue\n";
+		collector += "        up[\\$r,\\${index[\\$machine]}]=\\$u\n";
+		collector += "        down[\\$r,\\${index[\\$machine]}]=\\$d\n";
+		collector += "    done < \\$file\n";
+		collector += "}\n";
+		collector += "\n";
+		collector += "#Writes a bucket out in one go, replacing whatever was in its slot\n";
+		collector += "save() {\n";
+		collector += "    local r=\\$1\n";
+		collector += "\n";
+		collector += "    [ -n \\\"\\${bucket[\\$r]}\\\" ] || return 0\n";
+		collector += "    for i in \\${!MACHINES[@]}; do\n";
+		collector += "        printf '%d %s %d %d\\n' \\${bucket[\\$r]} \\${MACHINES[\\$i]} \\${up[\\$r,\\$i]} \\${down[\\$r,\\$i]}\n";
+		collector += "    done > \\$DIR/\\${RINGS[\\$r]}/.new\n";
+		collector += "    mv -f \\$DIR/\\${RINGS[\\$r]}/.new \\$DIR/\\${RINGS[\\$r]}/\\$(( (\\${bucket[\\$r]} / \\${STEPS[\\$r]}) % \\${SLOTS[\\$r]} ))\n";
+		collector += "}\n";
+		collector += "\n";
+		collector += "flush() {\n";
+		collector += "    for r in \\${!RINGS[@]}; do\n";
+		collector += "        save \\$r\n";
+		collector += "    done\n";
+		collector += "}\n";
+		collector += "\n";
+		collector += "init\n";
+		collector += "snapshot #Throw away whatever's built up since we last ran; we don't know when it's from\n";
+		collector += "flushed=0\n";
+		collector += "trap 'flush; exit 0' TERM\n";
+		collector += "\n";
+		collector += "while true; do\n";
+		collector += "    #Reconfiguring us may well have changed the machines\n";
+		collector += "    if [ \\\"\\$0\\\" -nt \\$DIR/started ]; then\n";
+		collector += "        flush\n";
+		collector += "        exec \\\"\\$0\\\"\n";
+		collector += "    fi\n";
+		collector += "\n";
+		collector += "    sleep \\$((INTERVAL - \\$(date +%s) % INTERVAL))\n";
+		collector += "    snapshot\n";
+		collector += "\n";
+		collector += "    #Each sample covers the interval before it\n";
+		collector += "    now=\\$((\\$(date +%s) - 1))\n";
+		collector += "\n";
+		collector += "    for r in \\${!RINGS[@]}; do\n";
+		collector += "        start=\\$((now - now % \\${STEPS[\\$r]}))\n";
+		collector += "        if [ \\\"\\${bucket[\\$r]}\\\" != \\\"\\$start\\\" ]; then\n";
+		collector += "            save \\$r\n";
+		collector += "            load \\$r \\$start\n";
+		collector += "        fi\n";
+		collector += "\n";
+		collector += "        for i in \\${!MACHINES[@]}; do\n";
+		collector += "            up[\\$r,\\$i]=\\$((\\${up[\\$r,\\$i]} + \\${bytes[\\${EGRESS[\\$i]}]:-0}))\n";
+		collector += "            down[\\$r,\\$i]=\\$((\\${down[\\$r,\\$i]} + \\${bytes[\\${INGRESS[\\$i]}]:-0}))\n";
+		collector += "        done\n";
+		collector += "    done\n";
+		collector += "\n";
+		collector += "    #A sample's finished as soon as it's taken.  Anything coarser is saved once it's finished, and every FLUSH seconds until then\n";
+		collector += "    save 0\n";
+		collector += "    if [ \\$((now - flushed)) -ge \\$FLUSH ]; then\n";
+		collector += "        flush\n";
+		collector += "        flushed=\\$now\n";
+		collector += "    fi\n";
+		collector += "done";
+		
+		units.addElement(new FileUnit("bandwidth_collector", "proceed", collector, COLLECTOR));
+		units.addElement(new FilePermsUnit("bandwidth_collector", "bandwidth_collector", COLLECTOR, "750"));
+		
+		String query = "";
+		query += "#!/bin/bash\n";
+		query += "#Queries the bandwidth store.  Windows are in seconds back from now, and every figure is in bytes\n";
+		query += "DIR=" + DIR + "\n";
+		query += "\n";
+		query += "#Prints each machine's label, then the bytes it sent and received in each bucket of the window\n";
+		query += "buckets() {\n";
+		query += "    local since=\\$((\\$(date +%s) - \\$2))\n";
+		query += "    local slots=(\\$DIR/\\$1/*)\n";
+		query += "\n";
+		query += "    [ -f \\\"\\${slots[0]}\\\" ] || return 0\n";
+		query += "    awk -v since=\\$since '\\$1 > since { print \\$2, \\$3, \\$4 }' \\\"\\${slots[@]}\\\"\n";
+		query += "}\n";
+		query += "\n";
+		query += "total() {\n";
+		query += "    buckets \\$1 \\$2 | awk '{ up[\\$1] += \\$2; down[\\$1] += \\$3 } END { for (machine in up) print machine, up[machine], down[machine] }' | sort\n";
+		query += "}\n";
+		query += "\n";
+		query += "top() {\n";
+		query += "    total \\$1 \\$2 | sort -k2,2nr | head -n \\${3:-10}\n";
+		query += "}\n";
+		query += "\n";
+		query += "#The p-th percentile of a column, per machine\n";
+		query += "percentile_of() {\n";
+		query += "    buckets \\$1 \\$2 | sort -k1,1 -k\\$4,\\$4n | awk -v p=\\$3 -v col=\\$4 '\n";
+		query += "        function emit() { if (n) print machine, values[int((n * p + 99) / 100)] }\n";
+		query += "        \\$1 != machine { emit(); machine = \\$1; n = 0 }\n";
+		query += "        { values[++n] = \\$col }\n";
+		query += "        END { emit() }'\n";
+		query += "}\n";
+		query += "\n";
+		query += "percentile() {\n";
+		query += "    join <(percentile_of \\$1 \\$2 \\$3 2) <(percentile_of \\$1 \\$2 \\$3 3)\n";
+		query += "}\n";
+		query += "\n";
+		query += "case \\\"\\$1\\\" in\n";
+		query += "total)\n";
+		query += "    total \\${2:-minute} \\${3:-86400}\n";
+		query += "    ;;\n";
+		query += "top)\n";
+		query += "    top \\${2:-minute} \\${3:-3600} \\$4\n";
+		query += "    ;;\n";
+		query += "percentile)\n";
+		query += "    percentile \\${2:-minute} \\${3:-86400} \\${4:-95}\n";
+		query += "    ;;\n";
+		query += "*)\n";
+		query += "    echo \\\"Usage: \\$0 total [resolution] [seconds]\\\"\n";
+		query += "    echo \\\"       \\$0 top [resolution] [seconds] [count]\\\"\n";
+		query += "    echo \\\"       \\$0 percentile [resolution] [seconds] [percentile]\\\"\n";
+		query += "    echo\n";
+		query += "    echo \\\"Resolutions are sample, minute, hour and day\\\"\n";
+		query += "    exit 1\n";
+		query += "    ;;\n";
+		query += "esac";
+		
+		units.addElement(new FileUnit("bandwidth_query", "proceed", query, QUERY));
+		units.addElement(new FilePermsUnit("bandwidth_query", "bandwidth_query", QUERY, "755"));
+		
+		String systemd = "";
+		systemd += "[Unit]\n";
+		systemd += "Description=Per-machine bandwidth collector\n";
+		systemd += "After=network.target\n";
+		systemd += "\n";
+		systemd += "[Service]\n";
+		systemd += "ExecStart=" + COLLECTOR + "\n";
+		systemd += "Restart=always\n";
+		systemd += "\n";
+		systemd += "[Install]\n";
+		systemd += "WantedBy=default.target";
+
+		units.addElement(new FileUnit("bandwidth_service", "bandwidth_collector_chmoded", systemd, "/etc/systemd/system/bandwidth.service"));
+
+		units.addElement(new SimpleUnit("bandwidth_service_running", "bandwidth_service",
+				"sudo systemctl daemon-reload; sudo systemctl enable bandwidth.service; sudo systemctl restart bandwidth.service;",
+				"systemctl is-active bandwidth.service 2>&1", "active", "pass",
+				"Couldn't start the bandwidth collector.  Nothing will be recorded, and bandwidth digests will be empty."));
+		
+		return units;
+	}
+	
+	/**
+	 * @return a command which prints each counted chain, and the bytes which have gone through it since it was
+	 *         last run.  The counters are zeroed as they're read, in one go.
+	 */
+	private String getSnapshot() {
+		String snapshot = "";
+		
+		if (networkModel.getData().getFirewallBackend().equals("nftables")) {
+			//Each chain we care about has a named counter
+			snapshot += "nft reset counters table ip " + FirewallModel.NFT_TABLE;
+			snapshot += " | awk '\\$1 == \\\"counter\\\" { chain = \\$2 } \\$1 == \\\"packets\\\" { print chain, \\$4 }'";
+		}
+		else {
+			//Everything jumped to a chain has gone through it, so its traffic is the total of the jumps to it
+			snapshot += "iptables -w -t filter -L -Z -v -x -n";
+			snapshot += " | awk '\\$1 ~ /^[0-9]+\\$/ { total[\\$3] += \\$2 } END { for (chain in total) print chain, total[chain] }'";
+		}
+		
+		return snapshot;
+	}
+	
+	public Vector<IUnit> getInstalled() { 
+		return new Vector<IUnit>();
+	}
+	
+	public Vector<IUnit> getLiveConfig() { 
+		return new Vector<IUnit>();
+	}
+
+}
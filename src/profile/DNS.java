@@ -265,7 +265,8 @@ public class DNS extends AStructuredProfile {
 				zoneConfig += record;
 			}
 			
-			units.addElement(((ServerModel)me).getConfigsModel().addConfigFile(domain.replaceAll("\\.", "_").replaceAll("-",  "_") + "_dns_internal_zone", "dns_installed", zoneConfig.replaceAll("\\s+$", ""), "/etc/unbound/unbound.conf.d/" + domain + ".zone"));
+			units.addElement(((ServerModel)me).getConfigsModel().addConfigFile(domain.replaceAll("\\.", "_").replaceAll("-",  "_") + "_dns_internal_zone", "dns_installed", zoneConfig.replaceAll("\\s+$", ""), "/etc/unbound/unbound.conf.d/" + domain + ".zone",
+					"Couldn't write out the config file at /etc/unbound/unbound.conf.d/" + domain + ".zone", true));
 		}
 		
 		if (!poison.isEmpty()) {
@@ -274,7 +275,8 @@ public class DNS extends AStructuredProfile {
 				poisonConfig += "\n    local-zone: \\\"" + record.getKey() + "\\\" redirect";
 				poisonConfig += "\n    local-data: \\\"" + record.getKey() + " A " + record.getValue().toString() + "\\\"";
 			}
-			units.addElement(((ServerModel)me).getConfigsModel().addConfigFile("dns_poison_zone", "dns_installed", poisonConfig.replaceAll("\\s+$", ""), "/etc/unbound/unbound.conf.d/poison.zone"));
+			units.addElement(((ServerModel)me).getConfigsModel().addConfigFile("dns_poison_zone", "dns_installed", poisonConfig.replaceAll("\\s+$", ""), "/etc/unbound/unbound.conf.d/poison.zone",
+					"Couldn't write out the config file at /etc/unbound/unbound.conf.d/poison.zone", true));
 		}
 		
 		if (networkModel.getData().getAdBlocking()) {
@@ -1,7 +1,9 @@
 package profile;
 
 import java.net.InetAddress;
-import java.util.HashMap;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Vector;
 
@@ -10,23 +12,34 @@ import core.iface.IUnit;
 import core.model.AModel;
 import core.model.DeviceModel;
 import core.model.NetworkModel;
+import core.model.ParallelBuild;
 import core.model.ServerModel;
 import core.unit.SimpleUnit;
 import core.unit.fs.DirUnit;
 import core.unit.fs.FilePermsUnit;
 import core.unit.fs.FileUnit;
 import core.unit.pkg.InstalledUnit;
+import inet.ipaddr.IPAddress;
+import inet.ipaddr.IPAddressString;
 
 public class IPSet extends AModel {
 
-	private HashMap<String, Vector<InetAddress>> ipsets;
-	private HashMap<String, Integer> cidrs;
+	//Set name -> "network/cidr" entries, in the order they were added.
+	//Each entry carries its own CIDR, and two addresses in the same network are only stored once
+	private LinkedHashMap<String, LinkedHashSet<String>> ipsets;
+	
+	//Set name -> the fewest prefixes which cover exactly its entries.  Thrown away whenever a set changes
+	private LinkedHashMap<String, Vector<String>> aggregated;
+	
+	//ipset won't go below this, and sets with room to spare don't need resizing when something's added by hand
+	private static final Integer MIN_HASHSIZE = 64;
+	private static final Integer MIN_MAXELEM  = 1024;
 
 	public IPSet(NetworkModel networkModel) {
 		super("ipset", networkModel);
 		
-		ipsets = new HashMap<String, Vector<InetAddress>>();
-		cidrs  = new HashMap<String, Integer>();
+		ipsets     = new LinkedHashMap<String, LinkedHashSet<String>>();
+		aggregated = new LinkedHashMap<String, Vector<String>>();
 	}
 
 	public void init() {
@@ -88,7 +101,7 @@ public class IPSet extends AModel {
 		return units;
 	}
 	
-	public Vector<IUnit> getLiveConfig() {
+	public synchronized Vector<IUnit> getLiveConfig() {
 		Vector<IUnit> units = new Vector<IUnit>();
 
 		units.addElement(new DirUnit("ipsets_dir", "ipset_installed",
@@ -112,61 +125,242 @@ public class IPSet extends AModel {
 		ipsetsConfSh += "}";
 		units.addElement(new FileUnit("ipsets_conf_shell_script", "ipsets_dir_created", ipsetsConfSh, "/etc/ipsets/ipsets.up.sh"));
 		units.addElement(new FilePermsUnit("ipsets_conf_shell_script", "ipsets_conf_shell_script", "/etc/ipsets/ipsets.up.sh", "750"));
+		
+		units.addElement(new FileUnit("ipsets_swap_shell_script", "ipsets_dir_created", getSwapScript(), "/etc/ipsets/ipsets.swap.sh"));
+		units.addElement(new FilePermsUnit("ipsets_swap_shell_script", "ipsets_swap_shell_script", "/etc/ipsets/ipsets.swap.sh", "750"));
 
-		units.addElement(new SimpleUnit("ipset_applied", "ipsets_conf_shell_script_chmoded",
+		units.addElement(new SimpleUnit("ipset_applied", "ipsets_swap_shell_script_chmoded",
 				"", //This is a forced ipset update.
-				"sudo /etc/ipsets/ipsets.up.sh | sudo ipset -! restore", "", "pass"));
+				"sudo /etc/ipsets/ipsets.swap.sh", "", "pass"));
 		
 		return units;
 	}
 
+	/**
+	 * Loads each set which has changed since it was last applied into a shadow set, then swaps that in.
+	 * A set is never seen half-loaded, and sets which haven't changed aren't touched at all.
+	 * 
+	 * Prints nothing unless something went wrong.
+	 */
+	private String getSwapScript() {
+		String sh = "";
+		sh += "#!/bin/bash\n";
+		sh += "cd /etc/ipsets/\n";
+		sh += "status=0\n";
+		sh += "for set in " + String.join(" ", ipsets.keySet()) + "; do\n";
+		sh += "    hash=\\$(sha256sum ipset.\\$set.conf | cut -d' ' -f1)\n";
+		sh += "    if ipset -q -n list \\$set > /dev/null && [ \\\"\\$hash\\\" = \\\"\\$(cat ipset.\\$set.applied 2>/dev/null)\\\" ]; then\n";
+		sh += "        continue\n";
+		sh += "    fi\n";
+		sh += "    ipset -q destroy \\${set}_t\n";
+		sh += "    if ! sed -e \\\"s/^create \\$set /create \\${set}_t /\\\" -e \\\"s/^add \\$set /add \\${set}_t /\\\" ipset.\\$set.conf | ipset restore; then\n";
+		sh += "        ipset -q destroy \\${set}_t\n";
+		sh += "        status=1\n";
+		sh += "        continue\n";
+		sh += "    fi\n";
+		sh += "    if ipset -q -n list \\$set > /dev/null; then\n";
+		//A set can't be swapped for one of another type (e.g. one loaded before all of ours were hash:net),
+		//so empty it and refill it where it is instead, rather than leave its old members in it
+		sh += "        if ! ipset -q swap \\${set}_t \\$set; then\n";
+		sh += "            ipset -q destroy \\${set}_t\n";
+		sh += "            ipset flush \\$set\n";
+		sh += "            if ! grep \\\"^add \\\" ipset.\\$set.conf | ipset -! restore; then\n";
+		sh += "                echo \\\"Couldn't refill the \\$set set\\\"\n";
+		sh += "                status=1\n";
+		sh += "                continue\n";
+		sh += "            fi\n";
+		sh += "        else\n";
+		sh += "            ipset destroy \\${set}_t\n";
+		sh += "        fi\n";
+		sh += "    else\n";
+		sh += "        ipset rename \\${set}_t \\$set || { status=1; continue; }\n";
+		sh += "    fi\n";
+		sh += "    echo \\$hash > ipset.\\$set.applied\n";
+		sh += "done\n";
+		sh += "exit \\$status";
+		
+		return sh;
+	}
+
 	private Vector<IUnit> getSet(String set) {
 		Vector<IUnit> units = new Vector<IUnit>();
 		
-		Vector<InetAddress> addresses = ipsets.get(set);
-
+		units.addElement(new FileUnit("ipset_" + set, "ipsets_dir_created", getConf(set), "/etc/ipsets/ipset." + set + ".conf",
+				"Couldn't create /etc/ipsets/ipset." + set + ".conf.  This is a pretty serious problem!", true));
+		
+		return units;
+	}
+	
+	/**
+	 * Gets every set, for ipset restore
+	 */
+	public synchronized String getRestore() {
+		Vector<String> confs = new Vector<String>();
+		
+		for (String set : ipsets.keySet()) {
+			confs.add(getConf(set));
+		}
+		
+		return String.join("\n", confs);
+	}
+	
+	private String getConf(String set) {
+		Vector<String> prefixes = getAggregated(set);
+		
+		//Always hash:net, even if every prefix is a /32, as a set can't be swapped for one of a different type
 		String conf = "";
-		conf += "create " + set + " hash:net family inet hashsize 1024 maxelem 65536";
+		conf += "#" + ipsets.get(set).size() + " entries, aggregated to " + prefixes.size() + " prefixes\n";
+		conf += "create " + set + " hash:net family inet";
+		conf += " hashsize " + Math.max(MIN_HASHSIZE, getPowerOfTwo(prefixes.size()));
+		conf += " maxelem " + Math.max(MIN_MAXELEM, getPowerOfTwo(prefixes.size() * 2));
 		
-		for (InetAddress address : addresses) {
-			if (address == null) {
-				continue;
+		for (String prefix : prefixes) {
+			conf += "\nadd " + set + " " + prefix;
+		}
+		
+		return conf;
+	}
+	
+	/**
+	 * Gets all of our sets as nftables named sets, for the nftables firewall backend
+	 */
+	public synchronized String getNftSets() {
+		String sets = "";
+		
+		for (String set : ipsets.keySet()) {
+			Vector<String> elements = new Vector<String>();
+			
+			for (String prefix : getAggregated(set)) {
+				elements.add(prefix);
 			}
-			else if (address.getHostAddress().equals("255.255.255.255")) {
-				conf += "\nadd " + set + " 255.255.255.255";
-				break; //We've hit wildcard, zero point in continuing!
+			
+			sets += "\tset " + set + " {\n";
+			sets += "\t\ttype ipv4_addr;\n";
+			sets += "\t\tflags interval;\n";
+			sets += "\t\tauto-merge;\n";
+			if (!elements.isEmpty()) {
+				sets += "\t\telements = { " + String.join(", ", elements) + " }\n";
 			}
+			sets += "\t}\n";
+		}
+		
+		return sets;
+	}
+	
+	//nft won't take a prefix with any host bits set, and this means we store each network once
+	private String getNetwork(InetAddress address, Integer cidr) {
+		byte[] bytes = address.getAddress();
+		
+		for (int i = 0; i < bytes.length; ++i) {
+			int bits = Math.max(0, Math.min(8, cidr - (i * 8)));
+			bytes[i] &= (byte) (0xff << (8 - bits));
+		}
+		
+		try {
+			return InetAddress.getByAddress(bytes).getHostAddress();
+		}
+		catch (UnknownHostException e) {
+			return address.getHostAddress();
+		}
+	}
+	
+	/**
+	 * Merges a set's entries into the smallest list of prefixes which covers exactly the same addresses,
+	 * so contiguous addresses become a single entry
+	 */
+	private synchronized Vector<String> getAggregated(String set) {
+		if (aggregated.containsKey(set)) {
+			return aggregated.get(set);
+		}
+		
+		Vector<IPAddress> blocks = new Vector<IPAddress>();
+		
+		for (String entry : ipsets.get(set)) {
+			IPAddress block = new IPAddressString(entry).getAddress();
 			
-			conf += "\nadd " + set + " " + address.getHostAddress() + "/" + this.cidrs.get(set);
-
+			if (block != null) {
+				blocks.add(block.toPrefixBlock());
+			}
 		}
 		
-		units.addElement(new FileUnit("ipset_" + set, "ipsets_dir_created", conf, "/etc/ipsets/ipset." + set + ".conf"));
+		Vector<String> prefixes = new Vector<String>();
 		
-		return units;
+		if (!blocks.isEmpty()) {
+			for (IPAddress block : blocks.firstElement().mergeToPrefixBlocks(blocks.toArray(new IPAddress[blocks.size()]))) {
+				Integer cidr = block.getNetworkPrefixLength();
+				
+				prefixes.add(block.getLower().withoutPrefixLength().toCanonicalString() + "/" + ((cidr == null) ? 32 : cidr));
+			}
+		}
+		
+		aggregated.put(set, prefixes);
+		
+		return prefixes;
 	}
 	
-	void addToSet(String set, Integer cidr, Vector<InetAddress> addresses) {
-		for (InetAddress address : addresses) {
-			addToSet(set, cidr, address);
+	/**
+	 * @return the prefixes ("network/cidr") which make up a set, or null if there's no such set
+	 */
+	public synchronized Vector<String> getPrefixes(String set) {
+		if (!ipsets.containsKey(set)) {
+			return null;
 		}
+		
+		return getAggregated(set);
 	}
-
-	void addToSet(String set, Integer cidr, InetAddress address) {
+	
+	private Integer getPowerOfTwo(Integer atLeast) {
+		Integer power = 1;
+		
+		while (power < atLeast) {
+			power *= 2;
+		}
+		
+		return power;
+	}
+	
+	private void addEntry(String set, Integer cidr, InetAddress address) {
+		ParallelBuild.checkWrite(null, "the " + set + " ipset");
+		
+		if (address == null) {
+			return;
+		}
+		
+		aggregated.remove(set);
+		
+		LinkedHashSet<String> entries = ipsets.get(set);
+		
+		if (entries == null) {
+			entries = new LinkedHashSet<String>();
+			ipsets.put(set, entries);
+		}
+		
+		if (address.getHostAddress().equals("255.255.255.255")) {
+			entries.add("255.255.255.255");
+		}
+		else {
+			entries.add(getNetwork(address, cidr) + "/" + cidr);
+		}
+	}
+	
+	synchronized void addToSet(String set, Integer cidr, Collection<InetAddress> addresses) {
 		set = StringUtils.stringToAlphaNumeric(set, "_");
-		Vector<InetAddress> extant = ipsets.get(set);
-		Vector<InetAddress> addresses = new Vector<InetAddress>();
 		
-		if (extant != null) {
-			addresses.addAll(extant);
+		for (InetAddress address : addresses) {
+			addEntry(set, cidr, address);
 		}
-
-		addresses.add(address);
+	}
+	
+	synchronized void addToSet(String set, Integer cidr, InetAddress[] addresses) {
+		set = StringUtils.stringToAlphaNumeric(set, "_");
 		
-		addresses = new Vector<InetAddress>(new LinkedHashSet<InetAddress>(addresses)); //enforce uniqueness
+		for (InetAddress address : addresses) {
+			addEntry(set, cidr, address);
+		}
+	}
 
-		this.ipsets.put(set, addresses);
-		this.cidrs.put(set, cidr);
+	synchronized void addToSet(String set, Integer cidr, InetAddress address) {
+		addEntry(StringUtils.stringToAlphaNumeric(set, "_"), cidr, address);
 	}
 	
 	public Vector<IUnit> getUnits() {
@@ -191,7 +385,7 @@ public class IPSet extends AModel {
 		return name;
 	}
 
-	public boolean isEmpty(String set) {
+	public synchronized boolean isEmpty(String set) {
 		return ( this.ipsets.containsKey(set) && this.ipsets.get(set).isEmpty() );
 	}
 }
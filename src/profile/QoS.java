@@ -1,6 +1,7 @@
 package profile;
 
 import java.net.InetAddress;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Vector;
 
@@ -12,6 +13,7 @@ import core.model.FirewallModel;
 import core.model.NetworkModel;
 import core.model.ServerModel;
 import core.profile.AStructuredProfile;
+import core.unit.SimpleUnit;
 import core.unit.fs.FilePermsUnit;
 import core.unit.fs.FileUnit;
 
@@ -28,6 +30,16 @@ public class QoS extends AStructuredProfile {
 	private int extOnlyUploadRate;
 	
 	private String tcUnits;
+	
+	private static final Integer DEFAULT_LINK_RATE = 1000000; //kbit/s, i.e. no shaping beyond the throttled classes
+	private static final Integer DEFAULT_CLASS     = 10;
+	
+	private static final Integer ALERT_WINDOW = 3600; //seconds between emails about any one machine
+	
+	private static final String TC_SCRIPT  = "/etc/init.d/tc.sh";
+	private static final String TC_APPLIED = "/run/tc.sh.applied";
+	
+	private static final String RSYSLOG_LOADED = "/run/rsyslog.throttled.loaded"; //Touched whenever rsyslog picks up our alerting
 
 	public QoS(ServerModel me, NetworkModel networkModel) {
 		super("qos", me, networkModel);
@@ -103,6 +115,9 @@ public class QoS extends AStructuredProfile {
         FirewallModel fm = ((ServerModel)me).getFirewallModel();
 
 		markAfter = markAfter*1024*1024; //get it in bytes
+		
+		//An offloaded connection would never be seen crossing markAfter
+		fm.addFlowOffloadExclusion(subnet);
 
 		for (Map.Entry<String, String> wanIface : networkModel.getData().getWanIfaces(me.getLabel()).entrySet() ) {
 	        //Mark any connection which has uploaded > markAfter bytes
@@ -125,10 +140,14 @@ public class QoS extends AStructuredProfile {
 		return units;
 	}
 	
+	/**
+	 * Emails about large uploads.  rsyslog looks each throttled log line's source address up in a table of our
+	 * machines, and hands any it finds to a single alerting script, so every line costs one lookup however many
+	 * machines we have.  The script remembers who it's emailed about, and only does so once an hour per machine.
+	 */
 	private Vector<IUnit> bandwidthThrottlingAlertUnits() {
 		Vector<IUnit> units = new Vector<IUnit>();
 		
-		String ommail = "";
 		String emailBody = "";
 		
 		emailBody += "As you know, one of the key advantages afforded by operating our network through Thornsec is that it monitors for uploading traffic. ";
@@ -158,12 +177,10 @@ public class QoS extends AStructuredProfile {
 		emailBody += "\\r\\n";
 		emailBody += "Tech Team";
 		
-		ommail += "module(load=\\\"ommail\\\")\n";
-		ommail += "\n";
-		ommail += "template(name=\\\"mailBodyUser\\\" type=\\\"string\\\" string=\\\"" + emailBody + "\\\")\n";
-		ommail += "template(name=\\\"mailBodyTech\\\" type=\\\"string\\\" string=\\\"%msg%\\\")\n";
-		ommail += "\n";
-		ommail += "if \\$msg contains \\\"throttled\\\" then {\n";
+		String adminEmail = networkModel.getData().getAdminEmail();
+		
+		//Source address -> "<identifier> <email> <user|device>"
+		LinkedHashMap<String, String> machines = new LinkedHashMap<String, String>();
 
 		//Iterate through devicen first
 		for (DeviceModel device : networkModel.getAllDevices()) {
@@ -171,109 +188,226 @@ public class QoS extends AStructuredProfile {
 			//If they're not throttled, don't bother
 			if (!networkModel.getData().getDeviceIsThrottled(device.getLabel())) { continue; }
 			
-			String deviceEmail  = device.getLabel() + "@" + networkModel.getData().getDomain(me.getLabel());
-			String adminEmail   = networkModel.getData().getAdminEmail();
-			String identifier   = device.getLabel() + "." + networkModel.getLabel();
-			
-			Vector<InetAddress> ips = device.getAddresses();
+			String deviceEmail = device.getLabel() + "@" + networkModel.getData().getDomain(me.getLabel());
+			String identifier  = device.getLabel() + "." + networkModel.getLabel();
+			String type        = null;
 			
 			switch (device.getType()) {
 				//Email both the user && the responsible person
 				case "User":
-					ommail += buildThrottledEmailAction(ips, identifier, adminEmail, deviceEmail, "mailBodyUser");
-					ommail += buildThrottledEmailAction(ips, identifier, deviceEmail, adminEmail, "mailBodyTech");
+					type = "user";
 					break;
 				//This is a peripheral of some sort.  Just let the responsible person know.
 				case "Internal":
 				case "External":
-					ommail += buildThrottledEmailAction(ips, identifier, deviceEmail, adminEmail, "mailBodyTech");
+					type = "device";
 					break;
 				default:
 			}
+			
+			if (type == null) { continue; }
+			
+			for (InetAddress ip : device.getAddresses()) {
+				machines.put(ip.getHostAddress(), identifier + " " + deviceEmail + " " + type);
+			}
 		}
 		
 		//Then servers
 		for (ServerModel srv : networkModel.getAllServers()) {
-			Vector<InetAddress> ip = new Vector<InetAddress>();
 			
-			if (!ip.isEmpty() && ip != null) {
-				ip.add(srv.getIP());
-				
-				ommail += buildThrottledEmailAction(ip, srv + "." + networkModel.getLabel(), srv + "@" + networkModel.getLabel() + networkModel.getData().getDomain(srv.getLabel()), networkModel.getData().getAdminEmail(), "mailBodyTech");
-			}
+			if (srv.isRouter() || srv.getIP() == null) { continue; }
+			
+			machines.put(srv.getIP().getHostAddress(),
+					srv.getLabel() + "." + networkModel.getLabel() + " " + srv.getLabel() + "@" + networkModel.getData().getDomain(srv.getLabel()) + " device");
 		}
 		
-		ommail += "}";
+		Vector<String> entries = new Vector<String>();
+		for (String ip : machines.keySet()) {
+			entries.add("    { \\\"index\\\": \\\"" + ip + "\\\", \\\"value\\\": \\\"" + machines.get(ip) + "\\\" }");
+		}
 		
-		units.addElement(new FileUnit("ommail_output", "proceed", ommail, "/etc/rsyslog.d/ommail.conf",
-				"I couldn't output the file for firing bandwidth emails.  This means you won't be able to "
+		String table = "";
+		table += "{ \\\"version\\\": 1, \\\"nomatch\\\": \\\"\\\", \\\"type\\\": \\\"string\\\",\n";
+		table += "  \\\"table\\\": [\n";
+		table += String.join(",\n", entries) + "\n";
+		table += "  ]\n";
+		table += "}";
+		
+		units.addElement(new FileUnit("throttled_lookup_table", "proceed", table, "/etc/rsyslog.d/throttled.json",
+				"I couldn't output the table of machines for bandwidth emails.  This means you won't be able to "
+				+ "be notified of any potential exfiltration from your network."));
+		
+		String script = "";
+		script += "#!/bin/bash\n";
+		script += "#Fed by rsyslog, one throttled upload per line: \\\"<identifier> <email> <user|device> <log message>\\\"\n";
+		script += "#Each machine is emailed about at most once per window, however often it's logged\n";
+		script += "ADMIN=" + adminEmail + "\n";
+		script += "WINDOW=" + ALERT_WINDOW + "\n";
+		script += "\n";
+		script += "declare -A last\n";
+		script += "\n";
+		script += "while read -r identifier email type message; do\n";
+		script += "    now=\\$(date +%s)\n";
+		script += "\n";
+		script += "    [ \\$((now - \\${last[\\$identifier]:-0})) -lt \\$WINDOW ] && continue\n";
+		script += "    last[\\$identifier]=\\$now\n";
+		script += "\n";
+		script += "    if [ \\\"\\$type\\\" == \\\"user\\\" ]; then\n";
+		script += "        echo -e \\\"subject:[\\$identifier] Upload bandwidth notification\\nfrom:\\$ADMIN\\nrecipients:\\$email\\n\\n" + emailBody + "\\\" | sendmail \\\"\\$email\\\"\n";
+		script += "    fi\n";
+		script += "\n";
+		script += "    echo -e \\\"subject:[\\$identifier] Upload bandwidth notification\\nfrom:\\$email\\nrecipients:\\$ADMIN\\n\\n\\$message\\\" | sendmail \\\"\\$ADMIN\\\"\n";
+		script += "done";
+		
+		units.addElement(new FileUnit("throttled_alert_script", "proceed", script, "/usr/local/bin/throttled-alert",
+				"I couldn't output the script for firing bandwidth emails.  This means you won't be able to "
 				+ "be notified of any potential exfiltration from your network."));
+		units.addElement(new FilePermsUnit("throttled_alert_script", "throttled_alert_script", "/usr/local/bin/throttled-alert", "755"));
+		
+		//Still called ommail.conf, so this replaces the old per-machine ommail rules wherever they were
+		String rsyslog = "";
+		rsyslog += "module(load=\\\"omprog\\\")\n";
+		rsyslog += "\n";
+		rsyslog += "lookup_table(name=\\\"throttled\\\" file=\\\"/etc/rsyslog.d/throttled.json\\\" reloadOnHUP=\\\"on\\\")\n";
+		rsyslog += "\n";
+		rsyslog += "template(name=\\\"throttledAlert\\\" type=\\\"string\\\" string=\\\"%\\$.machine% %msg%\\\\n\\\")\n";
+		rsyslog += "\n";
+		rsyslog += "if \\$msg contains \\\"throttled\\\" then {\n";
+		rsyslog += "    set \\$.machine = lookup(\\\"throttled\\\", re_extract(\\$msg, \\\"SRC=([0-9.]+)\\\", 0, 1, \\\"\\\"));\n";
+		rsyslog += "\n";
+		rsyslog += "    if \\$.machine != \\\"\\\" then {\n";
+		rsyslog += "        action(type=\\\"omprog\\\" binary=\\\"/usr/local/bin/throttled-alert\\\" template=\\\"throttledAlert\\\")\n";
+		rsyslog += "    }\n";
+		rsyslog += "}";
+		
+		units.addElement(new FileUnit("ommail_output", "throttled_alert_script_chmoded", rsyslog, "/etc/rsyslog.d/ommail.conf",
+				"I couldn't output the file for firing bandwidth emails.  This means you won't be able to "
+				+ "be notified of any potential exfiltration from your network.", true));
+		
+		//rsyslog only reads either file when it (re)starts, so make sure it has since they last changed
+		units.addElement(new SimpleUnit("throttled_rsyslog_reloaded", "ommail_output",
+				"sudo systemctl reload-or-restart rsyslog && sudo touch " + RSYSLOG_LOADED + ";",
+				"sudo find /etc/rsyslog.d/throttled.json /etc/rsyslog.d/ommail.conf -newer " + RSYSLOG_LOADED + " 2>&1", "", "pass",
+				"Couldn't reload rsyslog.  It may not email about any newly throttled machines until it's next restarted."));
 		
 		return units;
 	}
 
-	private String buildThrottledEmailAction(Vector<InetAddress> ips, String identifier, String fromEmail, String toEmail, String bodyTemplate) {
-		String action = "";
-
-		if (!ips.isEmpty() && ips != null) {
-			action += "    if \\$msg contains \\\"SRC=" + ips.elementAt(0).getHostAddress() + "\\\"";
-			
-			for (InetAddress ip : ips) {
-				action += " or \\$msg contains \\\"SRC=" + ip.getHostAddress() + "\\\"";
-			}
-			
-			action += " then {\n";
-			action += "        action(type=\\\"ommail\\\" server=\\\"localhost\\\" port=\\\"25\\\"\n";
-			action += "               mailfrom=\\\"" + fromEmail + "\\\"\n";
-			action += "               mailto=[\\\"" + toEmail + "\\\"]\n";
-			action += "               subject.text=\\\"[" + identifier + "] Upload bandwidth notification\\\"\n";
-			action += "               action.execonlyonceeveryinterval=\\\"3600\\\"\n";
-	        action += "               template=\\\"" + bodyTemplate + "\\\"\n";
-	        action += "               body.enable=\\\"on\\\"\n";
-			action += "        )\n";
-			action += "    }\n";
-		}
-		
-		return action;
-	}
-	
+	/**
+	 * Shapes each WAN interface with HTB.  Anything marked as a large upload is held to its own rate, and everything
+	 * else shares the rest of the link.  Every class gets an fq_codel leaf, so no one flow can fill the queue.
+	 *
+	 * We can only shape what we send, so if the Router has a "downloadrate", downloads are redirected through an IFB
+	 * and shaped there.  Otherwise they're left alone.
+	 *
+	 * Link rates come from the Router's "uploadrate" and "downloadrate" properties, in kbit/s.  These should be set
+	 * a little below the real link rates, so the queue builds up here rather than in the modem.
+	 *
+	 * tc.sh is started at boot by a oneshot systemd unit.  Each start records a hash of the script, which is audited
+	 * against a hash of what we'd generate, so any change to the rates, classes or interfaces gets re-applied.
+	 */
 	private Vector<IUnit> bandwidthThrottlingUnits() {
 		Vector<IUnit> units = new Vector<IUnit>();
 		
+		String uplink   = networkModel.getData().getProperty(me.getLabel(), "uploadrate", false);
+		String downlink = networkModel.getData().getProperty(me.getLabel(), "downloadrate", false);
+		
+		Vector<String> wanIfaces = new Vector<String>(networkModel.getData().getWanIfaces(me.getLabel()).keySet());
+		
+		Integer uplinkRate = (uplink == null) ? DEFAULT_LINK_RATE : Integer.parseInt(uplink);
+		
+		//Mark -> the variable holding the rate its class is held to
+		LinkedHashMap<Integer, String> throttled = new LinkedHashMap<Integer, String>();
+		throttled.put(userMark, "USR_UPLD");
+		throttled.put(deviceMark, "EXT_UPLD");
+		throttled.put(serverMark, "EXT_UPLD");
+		
+		LinkedHashMap<String, Integer> rates = new LinkedHashMap<String, Integer>();
+		rates.put("USR_UPLD", userUploadRate);
+		rates.put("EXT_UPLD", extOnlyUploadRate);
+		
+		//HTB guarantees every class its rate, whatever its parent's, so the throttled classes' rates have to come out
+		//of the default class's, or between them they'd be guaranteed more than the link (our tcUnits are kilobytes)
+		Integer throttledRate = 0;
+		for (String rate : throttled.values()) {
+			throttledRate += rates.get(rate) * 8;
+		}
+		
+		Integer defaultRate = uplinkRate - throttledRate;
+		
+		if (defaultRate <= 0) {
+			System.out.println(me.getLabel() + ": uploadrate is less than large uploads are throttled to, so they'll still cause bufferbloat");
+			defaultRate = 8;
+		}
+		
 		String tcInit = "";
 		tcInit += "#!/bin/bash\n";
 		tcInit += "TC=/sbin/tc\n";
 		tcInit += "\n";
-		tcInit += "#DNLD=150Kbit # DOWNLOAD Limit\n";
-		tcInit += "#DWEIGHT=15Kbit # DOWNLOAD Weight Factor ~ 1/10 of DOWNLOAD Limit\n";
-		tcInit += "\n";
-		tcInit += "USR_UPLD=" + userUploadRate + tcUnits + " # UPLOAD Limit for users\n";
-		tcInit += "USR_UWEIGHT=" + (userUploadRate/10) + tcUnits + " # UPLOAD Weight Factor for users\n";
-		tcInit += "EXT_UPLD=" + extOnlyUploadRate + tcUnits + " # UPLOAD Limit for external-only devicen\n";
-		tcInit += "EXT_UWEIGHT=" + (extOnlyUploadRate/10) + tcUnits + " # UPLOAD Weight Factor for external-only devicen\n";
+		tcInit += "UPLINK=" + uplinkRate + "kbit # Total upload rate\n";
+		if (downlink != null) {
+			tcInit += "DOWNLINK=" + Integer.parseInt(downlink) + "kbit # Total download rate\n";
+		}
+		tcInit += "DEFAULT_UPLD=" + defaultRate + "kbit # UPLOAD rate guaranteed to everything else\n";
+		tcInit += "USR_UPLD=" + rates.get("USR_UPLD") + tcUnits + " # UPLOAD Limit for users' large uploads\n";
+		tcInit += "EXT_UPLD=" + rates.get("EXT_UPLD") + tcUnits + " # UPLOAD Limit for devicen and servers' large uploads\n";
 		tcInit += "\n";
-		tcInit += "INTIFACE=lan0\n";
-		tcInit += "EXTIFACE=" + networkModel.getData().getWanIfaces(me.getLabel()).keySet().toArray()[0] + "\n";
+		tcInit += "#What we last started shaping with, so it can be audited.  It's in /run, so goes with the shaping on reboot\n";
+		tcInit += "APPLIED=" + TC_APPLIED + "\n";
 		tcInit += "\n";
 		tcInit += "tc_start() {\n";
 
-		//Ingress throttling
-		tcInit += "#    \\$TC qdisc add dev \\$INTIFACE root handle 11: cbq bandwidth 1000Mbit avpkt 1000 mpu 64\n";
-		tcInit += "#    \\$TC class add dev \\$INTIFACE parent 11:0 classid 11:1 cbq rate \\$DNLD weight \\$DWEIGHT allot 1514 prio 1 avpkt 1000 bounded\n";
-		tcInit += "#    \\$TC filter add dev \\$INTIFACE parent 11:0 protocol ip handle 4 fw flowid 11:1\n";
+		//Every device we put an htb on
+		Vector<String> shaped = new Vector<String>();
+		
+		for (int i = 0; i < wanIfaces.size(); ++i) {
+			String wan = wanIfaces.elementAt(i);
+			String ifb = "ifb" + i;
+			
+			shaped.add(wan);
+			
+			//Egress (upload) shaping
+			tcInit += "    \\$TC qdisc add dev " + wan + " root handle 1: htb default " + DEFAULT_CLASS + "\n";
+			tcInit += "    \\$TC class add dev " + wan + " parent 1: classid 1:1 htb rate \\$UPLINK\n";
+			tcInit += "    \\$TC class add dev " + wan + " parent 1:1 classid 1:" + DEFAULT_CLASS + " htb rate \\$DEFAULT_UPLD ceil \\$UPLINK prio 0\n";
+			tcInit += "    \\$TC qdisc add dev " + wan + " parent 1:" + DEFAULT_CLASS + " handle " + DEFAULT_CLASS + ": fq_codel\n";
+			
+			for (Integer mark : throttled.keySet()) {
+				tcInit += "    \\$TC class add dev " + wan + " parent 1:1 classid 1:" + mark + " htb rate \\$" + throttled.get(mark) + " ceil \\$" + throttled.get(mark) + " prio 1\n";
+				tcInit += "    \\$TC qdisc add dev " + wan + " parent 1:" + mark + " handle " + mark + ": fq_codel\n";
+				tcInit += "    \\$TC filter add dev " + wan + " parent 1: protocol ip handle " + mark + " fw flowid 1:" + mark + "\n";
+			}
+			
+			if (downlink == null) {
+				continue;
+			}
+			
+			//Ingress (download) shaping
+			shaped.add(ifb);
+			
+			tcInit += "\n";
+			tcInit += "    ip link add " + ifb + " type ifb 2> /dev/null\n";
+			tcInit += "    ip link set dev " + ifb + " up\n";
+			tcInit += "    \\$TC qdisc add dev " + wan + " handle ffff: ingress\n";
+			tcInit += "    \\$TC filter add dev " + wan + " parent ffff: protocol all u32 match u32 0 0 action mirred egress redirect dev " + ifb + "\n";
+			tcInit += "    \\$TC qdisc add dev " + ifb + " root handle 1: htb default " + DEFAULT_CLASS + "\n";
+			tcInit += "    \\$TC class add dev " + ifb + " parent 1: classid 1:1 htb rate \\$DOWNLINK\n";
+			tcInit += "    \\$TC class add dev " + ifb + " parent 1:1 classid 1:" + DEFAULT_CLASS + " htb rate \\$DOWNLINK ceil \\$DOWNLINK\n";
+			tcInit += "    \\$TC qdisc add dev " + ifb + " parent 1:" + DEFAULT_CLASS + " handle " + DEFAULT_CLASS + ": fq_codel\n";
+		}
+		
 		tcInit += "\n";
-
-		//Egress throttling
-		tcInit += "#    \\$TC qdisc add dev \\$EXTIFACE root handle 10: cbq bandwidth 1000Mbit avpkt 1000 mpu 64\n";
-		tcInit += "#    \\$TC class add dev \\$EXTIFACE parent 10:0 classid 10:1 cbq rate \\$USR_UPLD weight \\$USR_UWEIGHT allot 1514 prio 1 avpkt 1000 bounded\n";
-		tcInit += "#    \\$TC filter add dev \\$EXTIFACE parent 10:0 protocol ip handle 4 fw flowid 10:1\n";
-		tcInit += "#    \\$TC class add dev \\$EXTIFACE parent 10:0 classid 10:2 cbq rate \\$EXT_UPLD weight \\$EXT_UWEIGHT allot 1514 prio 1 avpkt 1000 bounded\n";
-		tcInit += "#    \\$TC filter add dev \\$EXTIFACE parent 10:0 protocol ip handle 3 fw flowid 10:2\n";
+		tcInit += "    sha256sum " + TC_SCRIPT + " | cut -d' ' -f1 > \\$APPLIED\n";
 		tcInit += "}\n";
 		tcInit += "\n";
 		tcInit += "tc_stop() {\n";
-		tcInit += "#    \\$TC qdisc del dev \\$INTIFACE root\n";
-		tcInit += "#    \\$TC qdisc del dev \\$EXTIFACE root\n";
+		tcInit += "    rm -f \\$APPLIED\n";
+		for (int i = 0; i < wanIfaces.size(); ++i) {
+			tcInit += "    \\$TC qdisc del dev " + wanIfaces.elementAt(i) + " root 2> /dev/null\n";
+			tcInit += "    \\$TC qdisc del dev " + wanIfaces.elementAt(i) + " ingress 2> /dev/null\n";
+			tcInit += "    ip link del ifb" + i + " 2> /dev/null\n";
+		}
+		tcInit += "    true\n";
 		tcInit += "}\n";
 		tcInit += "\n";
 		tcInit += "tc_restart() {\n";
@@ -283,18 +417,22 @@ public class QoS extends AStructuredProfile {
 		tcInit += "}\n";
 		tcInit += "\n";
 		tcInit += "tc_show() {\n";
-		tcInit += "#    echo \\\"\\\"\n";
-		tcInit += "#    echo \\\"\\$INTIFACE:\\\"\n";
-		tcInit += "#    \\$TC qdisc show dev \\$INTIFACE\n";
-		tcInit += "#    \\$TC class show dev \\$INTIFACE\n";
-		tcInit += "#    \\$TC filter show dev \\$INTIFACE\n";
-		tcInit += "#    echo \\\"\\\"\n";
+		for (String dev : shaped) {
+			tcInit += "    echo \\\"" + dev + ":\\\"\n";
+			tcInit += "    \\$TC -s qdisc show dev " + dev + "\n";
+			tcInit += "    \\$TC -s class show dev " + dev + "\n";
+			tcInit += "    \\$TC filter show dev " + dev + "\n";
+			tcInit += "    echo \\\"\\\"\n";
+		}
+		tcInit += "    true\n";
+		tcInit += "}\n";
 		tcInit += "\n";
-		tcInit += "    echo \\\"\\$EXTIFACE:\\\"\n";
-		tcInit += "    \\$TC qdisc show dev \\$EXTIFACE\n";
-		tcInit += "    \\$TC class show dev \\$EXTIFACE\n";
-		tcInit += "    \\$TC filter show dev \\$EXTIFACE\n";
-		tcInit += "    echo \\\"\\\"\n";
+		//Prints any interface which isn't being shaped
+		tcInit += "tc_check() {\n";
+		for (String dev : shaped) {
+			tcInit += "    \\$TC qdisc show dev " + dev + " 2> /dev/null | grep -q \\\"^qdisc htb 1: root\\\" || echo " + dev + "\n";
+		}
+		tcInit += "    true\n";
 		tcInit += "}\n";
 		tcInit += "\n";
 		tcInit += "case \\\"\\$1\\\" in\n";
@@ -313,16 +451,51 @@ public class QoS extends AStructuredProfile {
 		tcInit += "    tc_restart\n";
 		tcInit += "    echo \\\"done\\\"\n";
 		tcInit += "    ;;\n";
+		tcInit += "  show)\n";
+		tcInit += "    tc_show\n";
+		tcInit += "    ;;\n";
+		tcInit += "  check)\n";
+		tcInit += "    tc_check\n";
+		tcInit += "    ;;\n";
 		tcInit += "  *)\n";
-		tcInit += "    echo \\\"Usage: /etc/init.d/tc.sh {start|stop|restart|show}\\\"\n";
+		tcInit += "    echo \\\"Usage: " + TC_SCRIPT + " {start|stop|restart|show|check}\\\"\n";
 		tcInit += "    ;;\n";
 		tcInit += "esac\n";
 		tcInit += "exit 0";
 		
-		units.addElement(new FileUnit("tc_init_script_created", "proceed", tcInit, "/etc/init.d/tc.sh",
+		units.addElement(new FileUnit("tc_init_script_created", "proceed", tcInit, TC_SCRIPT,
 				"I couldn't output the file for starting bandwidth shaping.  This means you won't be able to "
 				+ "control any potential exfiltration from your network."));
-		units.addElement(new FilePermsUnit("tc_init_script_perms", "tc_init_script_created", "/etc/init.d/tc.sh", "755"));
+		units.addElement(new FilePermsUnit("tc_init_script_perms", "tc_init_script_created", TC_SCRIPT, "755"));
+		
+		String systemd = "";
+		systemd += "[Unit]\n";
+		systemd += "Description=Bandwidth shaping\n";
+		systemd += "Wants=network-online.target\n";
+		systemd += "After=network-online.target\n";
+		systemd += "\n";
+		systemd += "[Service]\n";
+		systemd += "Type=oneshot\n";
+		systemd += "RemainAfterExit=yes\n";
+		systemd += "ExecStart=" + TC_SCRIPT + " restart\n";
+		systemd += "ExecStop=" + TC_SCRIPT + " stop\n";
+		systemd += "\n";
+		systemd += "[Install]\n";
+		systemd += "WantedBy=multi-user.target";
+		
+		units.addElement(new FileUnit("tc_service", "tc_init_script_perms_chmoded", systemd, "/etc/systemd/system/tc.service"));
+		
+		units.addElement(new SimpleUnit("tc_service_enabled", "tc_service",
+				"sudo systemctl daemon-reload; sudo systemctl enable tc.service;",
+				"sudo systemctl is-enabled tc.service", "enabled", "pass",
+				"Couldn't enable bandwidth shaping at boot.  It'll be gone whenever the router restarts, until it's next configured."));
+		
+		//Passes once every WAN interface (and its IFB, if we shape downloads) is being shaped, by exactly this script
+		String tcHash = FileUnit.getHash(tcInit);
+		units.addElement(new SimpleUnit("tc_shaping", "tc_service_enabled",
+				"sudo systemctl restart tc.service;",
+				"sudo " + TC_SCRIPT + " check; cat " + TC_APPLIED + " 2>&1;", tcHash, "pass",
+				"Couldn't start bandwidth shaping.  Large uploads won't be throttled, and may cause bufferbloat for everyone else."));
 
 		return units;
 	}
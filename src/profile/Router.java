@@ -5,9 +5,7 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Set;
 import java.util.Vector;
 
 import javax.json.JsonArray;
@@ -21,6 +19,7 @@ import core.model.FirewallModel;
 import core.model.InterfaceModel;
 import core.model.MachineModel;
 import core.model.NetworkModel;
+import core.model.PortSet;
 import core.model.ServerModel;
 import core.profile.AStructuredProfile;
 import core.unit.fs.FileOwnUnit;
@@ -34,13 +33,13 @@ public class Router extends AStructuredProfile {
 	private DHCP dhcp;
 	private QoS  qos;
 	
+	private Bandwidth bandwidth;
+	
 	private FirewallModel firewall;
 	
 	private Vector<String> userIfaces;
 	private Vector<String> wanIfaces;
 	
-	private HashMap<String, InetAddress[]> resolved;
-	
 	private String domain;
 	
 	private boolean isPPP;
@@ -53,6 +52,8 @@ public class Router extends AStructuredProfile {
 		this.dhcp = new DHCP(me, networkModel);
 		this.qos  = new QoS(me, networkModel);
 		
+		this.bandwidth = new Bandwidth(me, networkModel);
+		
 		//:2+ is a wildcard for VPN traffic interfaces
 		this.userIfaces = new Vector<String>();
 		this.userIfaces.addElement(":2+");
@@ -61,8 +62,6 @@ public class Router extends AStructuredProfile {
 		
 		this.isPPP    = false;
 		this.isStatic = false;
-		
-		this.resolved = new HashMap<String, InetAddress[]>();
 	}
 
 	public DHCP getDHCP() {
@@ -87,6 +86,9 @@ public class Router extends AStructuredProfile {
 		units.addAll(this.dhcp.getPersistentConfig());
 		units.addAll(this.dns.getPersistentConfig());
 		units.addAll(this.qos.getPersistentConfig());
+		if (isCountingBandwidth()) {
+			units.addAll(this.bandwidth.getPersistentConfig());
+		}
 		
 		units.addAll(routerScript());
 		
@@ -114,30 +116,31 @@ public class Router extends AStructuredProfile {
 		units.addAll(this.dns.getLiveConfig());
 		units.addAll(this.qos.getLiveConfig());
 
-		units.addAll(dailyBandwidthEmailDigestUnits());
+		if (isCountingBandwidth()) {
+			units.addAll(dailyBandwidthEmailDigestUnits());
+		}
 
 		return units;
 	}
 	
+	/**
+	 * The bandwidth store counts the traffic through each machine's chains.  Once a connection's been offloaded to
+	 * a flowtable its packets don't go through any chain, so the store would only see the start of each one.
+	 * Rather than report far too little, we don't keep it at all when offloading.
+	 */
+	private boolean isCountingBandwidth() {
+		return !(networkModel.getData().getFlowOffload() && networkModel.getData().getFirewallBackend().equals("nftables"));
+	}
+	
 	private InetAddress[] hostToInetAddress(String uri) {
-		InetAddress[] destination = null;
-		
-		if (this.resolved.containsKey(uri)) {
-			destination = this.resolved.get(uri);
-		}
-		else {
-			destination = networkModel.stringToAllIPs(uri);
-			
-			this.resolved.put(uri, destination);
-		}
-		
-		return destination;
+		//Cached (and usually already resolved) by the NetworkModel
+		return networkModel.stringToAllIPs(uri);
 	}
 	
 	private Vector<IUnit> machineIngressRules(MachineModel machine) {
 		Vector<IUnit> units = new Vector<IUnit>();
 		
-		HashMap<String, Set<Integer>> ingress = machine.getRequiredIngress();
+		HashMap<String, PortSet> ingress = machine.getRequiredIngress();
 
 		for (String uri : ingress.keySet()) {
 			InetAddress[] destinations = hostToInetAddress(uri);
@@ -145,11 +148,11 @@ public class Router extends AStructuredProfile {
 			
 			String setName = networkModel.getIPSet().getSetName(name);
 			
-			networkModel.getIPSet().addToSet(setName, cidr, new Vector<InetAddress>(Arrays.asList(destinations)));
+			networkModel.getIPSet().addToSet(setName, cidr, destinations);
 			
 			String rule = "";
 			rule += "-p tcp";
-			rule += (ingress.get(uri).isEmpty() || ingress.get(uri).contains(0)) ? "" : " -m multiport --dports " + collection2String(ingress.get(uri));
+			rule += (ingress.get(uri).isEmpty() || ingress.get(uri).contains(0)) ? "" : " -m multiport --dports " + ingress.get(uri);
 			rule += (uri.equals("255.255.255.255")) ? "" : " -m set --match-set " + setName + " src";
 			rule += " -j ACCEPT";
 			
@@ -167,18 +170,23 @@ public class Router extends AStructuredProfile {
 	private Vector<IUnit> machineEgressRules(MachineModel machine) {
 		Vector<IUnit> units = new Vector<IUnit>();
 
-		HashMap<String, HashMap<Integer, Set<Integer>>> egress = machine.getRequiredEgress();
+		HashMap<String, HashMap<Integer, PortSet>> egress = machine.getRequiredEgress();
 
 		for (String uri : egress.keySet()) {
 			InetAddress[] destinations = hostToInetAddress(uri);
 			
+			PortSet ports = new PortSet();
+			for (PortSet cidrPorts : egress.get(uri).values()) {
+				ports.addAll(cidrPorts);
+			}
+			
 			String setName = networkModel.getIPSet().getSetName(uri);
 			
-			networkModel.getIPSet().addToSet(setName, machine.getCIDR(uri), new Vector<InetAddress>(Arrays.asList(destinations)));
+			networkModel.getIPSet().addToSet(setName, machine.getCIDR(uri), destinations);
 			
 			String rule = "";
 			rule += "-p tcp";
-			rule += (egress.get(uri).values().isEmpty() || collection2String(egress.get(uri).values()).equals("0")) ? "" : " -m multiport --dports " + collection2String(egress.get(uri).values());
+			rule += (ports.isEmpty() || ports.contains(0)) ? "" : " -m multiport --dports " + ports;
 			rule += (uri.equals("255.255.255.255")) ? "" : " -m set --match-set " + setName + " dst";
 			rule += " -j ACCEPT";
 			
@@ -196,7 +204,7 @@ public class Router extends AStructuredProfile {
 	private Vector<IUnit> serverForwardRules(ServerModel server) {
 		Vector<IUnit> units = new Vector<IUnit>();
 		
-		HashMap<String, Set<Integer>> forward = server.getRequiredForward();
+		HashMap<String, PortSet> forward = server.getRequiredForward();
 
 		for (String destination : forward.keySet()) {
 			MachineModel destinationMachine = networkModel.getMachineModel(destination);
@@ -205,7 +213,7 @@ public class Router extends AStructuredProfile {
 			request += "-p tcp";
 			request += " -m tcp";
 			request += " -m multiport";
-			request += " --sports " + collection2String(forward.get(destination));
+			request += " --sports " + forward.get(destination);
 			request += " -s " + collection2String(destinationMachine.getAddresses());
 			request += " -d " + collection2String(server.getAddresses());
 			request += " -j ACCEPT";
@@ -214,11 +222,14 @@ public class Router extends AStructuredProfile {
 			reply += "-p tcp";
 			reply += " -m tcp";
 			reply += " -m multiport";
-			reply += " --dports " + collection2String(forward.get(destination));
+			reply += " --dports " + forward.get(destination);
 			reply += " -d " + collection2String(destinationMachine.getAddresses());
 			reply += " -s " + collection2String(server.getAddresses());
 			reply += " -j ACCEPT";
 			
+			//These go in both machines' chains, as which one a packet between them is dispatched to depends on the
+			//backend (whichever machine's dispatch comes first with iptables, its source with nftables), and either
+			//chain drops anything it doesn't accept
 			this.firewall.addFilter(
 					server.getHostname() + "_" + destinationMachine.getHostname() + "_forward",
 					server.getForwardChain(),
@@ -251,7 +262,7 @@ public class Router extends AStructuredProfile {
 	private Vector<IUnit> machineDnatRules(MachineModel machine) {
 		Vector<IUnit> units = new Vector<IUnit>();
 
-		HashMap<String, Set<Integer>> dnat = machine.getRequiredDnat();
+		HashMap<String, PortSet> dnat = machine.getRequiredDnat();
 
 		//Only create these rules if we actually *have* users.
 		if (!networkModel.getIPSet().isEmpty("user")) {
@@ -262,7 +273,7 @@ public class Router extends AStructuredProfile {
 				rule += "-p tcp";
 				rule += " -m tcp";
 				rule += " -m multiport";
-				rule += " --dports " + collection2String(dnat.get(destinationName));
+				rule += " --dports " + dnat.get(destinationName);
 				rule += " ! -s " + collection2String(machine.getAddresses());
 				rule += " -d " + collection2String(destinationMachine.getAddresses());
 				rule += " -j DNAT";
@@ -283,7 +294,7 @@ public class Router extends AStructuredProfile {
 			rule += (this.isStatic) ? " -d " + networkModel.getData().getExternalIp(machine.getLabel()).getHostAddress() : "";
 			rule += " -p tcp";
 			rule += " -m multiport";
-			rule += " --dports " + collection2String(machine.getRequiredListenTCP());
+			rule += " --dports " + machine.getRequiredListenTCP();
 			rule += " -j DNAT";
 			rule += " --to-destination " + collection2String(machine.getAddresses());
 			
@@ -300,7 +311,7 @@ public class Router extends AStructuredProfile {
 	private Vector<IUnit> machineAllowUserForwardRules(MachineModel machine) {
 		Vector<IUnit> units = new Vector<IUnit>();
 
-		Vector<Integer> listen = machine.getRequiredListenTCP();
+		PortSet listen = machine.getRequiredListenTCP();
 		String machineName = machine.getLabel();
 		
 		//Only create these rules if we actually *have* users.
@@ -310,7 +321,7 @@ public class Router extends AStructuredProfile {
 			String rule = "";
 			rule += "-p tcp";
 			rule += " -m multiport";
-			rule += " --dports " + collection2String(listen);
+			rule += " --dports " + listen;
 			rule += " -m set";
 			rule += " --match-set user src";
 			rule += " -j ACCEPT";
@@ -326,7 +337,7 @@ public class Router extends AStructuredProfile {
 			//First, iterate through everything which should be listening for everyone
 			String listenRule = "";
 			listenRule += "-p tcp";
-			listenRule += (!listen.isEmpty()) ? " -m multiport --dports " + collection2String(listen) : "";
+			listenRule += (!listen.isEmpty()) ? " -m multiport --dports " + listen : "";
 			listenRule += " -m set";
 			listenRule += " --match-set user src";
 			listenRule += " -j ACCEPT";
@@ -339,12 +350,12 @@ public class Router extends AStructuredProfile {
 			);
 
 			//These are management ports
-			Set<Integer> ports = ((DeviceModel) machine).getManagementPorts();
+			PortSet ports = ((DeviceModel) machine).getManagementPorts();
 			
 			if (ports != null && !ports.isEmpty()) {
 				String managementRule = "";
 				managementRule += "-p tcp";
-				managementRule += " -m multiport --dports " + collection2String(ports);
+				managementRule += " -m multiport --dports " + ports;
 				managementRule += " -m set";
 				managementRule += " --match-set " + machineName + "_admins src";
 				managementRule += " -j ACCEPT";
@@ -583,8 +594,8 @@ public class Router extends AStructuredProfile {
 		email += "from:" + sender + "\\n";
 		email += "recipients:" + user.getEmailAddress() + "\\n";
 		email += "\\n";
-		email += "UL: \\`iptables -L " + user.getEgressChain() + " -v -n | tail -n 2 | head -n 1 | awk '{ print \\$2 }'\\`\\n";
-		email += "DL: \\`iptables -L " + user.getIngressChain() + " -v -n | tail -n 2 | head -n 1 | awk '{ print \\$2 }'\\`";
+		email += "UL: \\`human \\${up[" + user.getLabel() + "]}\\`\\n";
+		email += "DL: \\`human \\${down[" + user.getLabel() + "]}\\`";
 		
 		if (includeBlurb) {
 			email += "\\n";
@@ -622,6 +633,21 @@ public class Router extends AStructuredProfile {
 
 		String script = "";
 		script += "#!/bin/bash\n";
+		script += "\n";
+		//The collector owns the counters, so read the last day back from its store rather than the kernel
+		script += "declare -A up down up95 down95\n";
+		script += "while read machine sent received; do\n";
+		script += "    up[\\$machine]=\\$sent\n";
+		script += "    down[\\$machine]=\\$received\n";
+		script += "done < <(" + Bandwidth.QUERY + " total minute 86400)\n";
+		script += "while read machine sent received; do\n";
+		script += "    up95[\\$machine]=\\$sent\n";
+		script += "    down95[\\$machine]=\\$received\n";
+		script += "done < <(" + Bandwidth.QUERY + " percentile minute 86400 95)\n";
+		script += "\n";
+		script += "human() {\n";
+		script += "    numfmt --to=iec --suffix=B \\${1:-0}\n";
+		script += "}";
 		
 		//Iterate through users first; they need alerting individually
 		for (DeviceModel user : networkModel.getUserDevices()) {
@@ -633,9 +659,6 @@ public class Router extends AStructuredProfile {
 												"[" + user.getLabel() + "." + networkModel.getData().getLabel() + "] Daily Bandwidth Digest",
 												user,
 												true);
-
-				script += "iptables -Z " + user.getIngressChain() + "\n";
-				script += "iptables -Z " + user.getEgressChain();
 			}
 		}
 
@@ -645,32 +668,29 @@ public class Router extends AStructuredProfile {
 		script += "subject: [" + networkModel.getData().getLabel() + "." + networkModel.getData().getDomain(me.getLabel()) + "] Daily Bandwidth Digest\\n";
 		script += "from:" + me.getLabel() + "@" + networkModel.getData().getDomain(me.getLabel()) + "\\n";
 		script += "recipients:" + networkModel.getData().getAdminEmail() + "\\n";
+		script += "\\n";
+		script += "Largest uploaders:\\n";
+		script += "\\`" + Bandwidth.QUERY + " top minute 86400 5 | numfmt --field=2-3 --to=iec --suffix=B\\`";
 
 		//Iterate through everything which should be reported back to admins.
 		//This used to be an individual email per device/server, but this is useless as it just spams the admins
 		for (DeviceModel peripheral : networkModel.getAllPeripheralDevices()) {
 			script += "\\n\\n";
 			script += "Digest for " + peripheral.getLabel() + ":\\n";
-			script += "UL: \\`iptables -L " + peripheral.getEgressChain() + " -v -n | tail -n 2 | head -n 1 | awk '{ print \\$2 }'\\`\\n";
-			script += "DL: \\`iptables -L " + peripheral.getIngressChain() + " -v -n | tail -n 2 | head -n 1 | awk '{ print \\$2 }'\\`";
+			script += "UL: \\`human \\${up[" + peripheral.getLabel() + "]}\\` (95th percentile \\`human \\${up95[" + peripheral.getLabel() + "]}\\` a minute)\\n";
+			script += "DL: \\`human \\${down[" + peripheral.getLabel() + "]}\\` (95th percentile \\`human \\${down95[" + peripheral.getLabel() + "]}\\` a minute)";
 		}
 
 		//Then servers
 		for (ServerModel srv : networkModel.getAllServers()) {
 			script += "\\n\\n";
 			script += "Digest for " + srv.getLabel() + ":\\n";
-			script += "UL: \\`iptables -L " + srv.getEgressChain() + " -v -n | tail -n 2 | head -n 1 | awk '{ print \\$2 }'\\`\\n";
-			script += "DL: \\`iptables -L " + srv.getIngressChain() + " -v -n | tail -n 2 | head -n 1 | awk '{ print \\$2 }'\\`";
+			script += "UL: \\`human \\${up[" + srv.getLabel() + "]}\\` (95th percentile \\`human \\${up95[" + srv.getLabel() + "]}\\` a minute)\\n";
+			script += "DL: \\`human \\${down[" + srv.getLabel() + "]}\\` (95th percentile \\`human \\${down95[" + srv.getLabel() + "]}\\` a minute)";
 		}
 
 		script += "\\\"";
-		script += "|sendmail \"" + networkModel.getData().getAdminEmail() + "\"\n";
-
-		//Zero all the chains
-		for (MachineModel machine : networkModel.getAllMachines()) {
-			script += "\niptables -Z " + machine.getIngressChain();
-			script += "\niptables -Z " + machine.getEgressChain();
-		}
+		script += "|sendmail \"" + networkModel.getData().getAdminEmail() + "\"";
 		
 		units.addElement(new FileUnit("daily_bandwidth_alert_script_created", "proceed", script, "/etc/cron.daily/bandwidth", "I couldn't create the bandwidth digest script.  This means you and your users won't receive daily updates on bandwidth use"));
 		units.addElement(new FilePermsUnit("daily_bandwidth_alert_script", "daily_bandwidth_alert_script_created", "/etc/cron.daily/bandwidth", "750", "I couldn't set the bandwidth digest script to be executable.  This means you and your users won't receive daily updates on bandwidth use"));
@@ -896,12 +916,18 @@ public class Router extends AStructuredProfile {
 				String ifaceName = null;
 				String ifaceComment = null;
 				
+				//Devices past the first /16 also carry which /16 they're in.  These are always 4+ digits, so can't clash
+				String alias = machine.getThirdOctet().toString();
+				if (machine instanceof DeviceModel && machine.getSecondOctet() > 50) {
+					alias = (machine.getSecondOctet() - 50) + String.format("%03d", machine.getThirdOctet());
+				}
+				
 				if (((ServerModel) me).isMetal()) {
-					ifaceName    = "vm" + machine.getThirdOctet();
+					ifaceName    = "vm" + alias;
 					ifaceComment = "Router/Metal interface. This is a fake interface just for the VM";
 				}
 				else {
-					ifaceName    = lanBridge + ":" + classifier + machine.getThirdOctet();
+					ifaceName    = lanBridge + ":" + classifier + alias;
 					ifaceComment = "Router interface. Let's bridge to lan";
 				}
 				
@@ -963,6 +989,19 @@ public class Router extends AStructuredProfile {
 			userIfaces.addElement(":1+");
 		}
 		
+		//Established connections can skip our chains entirely
+		if (networkModel.getData().getFlowOffload()) {
+			Vector<String> offloadIfaces = new Vector<String>();
+			offloadIfaces.addAll(networkModel.getData().getLanIfaces(me.getLabel()).keySet());
+			offloadIfaces.addAll(networkModel.getData().getWanIfaces(me.getLabel()).keySet());
+			
+			this.firewall.setFlowOffload(offloadIfaces);
+		}
+		
+		if (!isCountingBandwidth()) {
+			System.out.println(me.getLabel() + ": offloaded connections skip the chains the bandwidth store counts, so it (and the daily bandwidth digest) won't be set up.");
+		}
+		
 		units.addAll(dhcp.getNetworking());
 		units.addAll(dns.getNetworking());
 		units.addAll(qos.getNetworking());
@@ -983,18 +1022,18 @@ public class Router extends AStructuredProfile {
 		this.firewall.addChain(machine.getEgressChain(), "filter", machine.getEgressChain());
 		//Create our ingress chain for download bandwidth tracking
 		this.firewall.addChain(machine.getIngressChain(), "filter", machine.getIngressChain());
+		if (isCountingBandwidth()) {
+			this.firewall.addChainCounter(machine.getEgressChain());
+			this.firewall.addChainCounter(machine.getIngressChain());
+		}
 		//Create our forward chain for all other rules
 		this.firewall.addChain(machine.getForwardChain(), "filter", machine.getForwardChain());
 
 		//Force traffic to/from a given subnet to jump to our chains
-		this.firewall.addFilterForward(machine.getHostname() + "_ipt_server_src",
-				"-s " + machine.getSubnets().elementAt(0).getHostAddress() + "/" + machine.getCIDR()
-				+ " -j "+ machine.getForwardChain(),
-				"Force any internal traffic coming from " + machine.getHostname() + " to its own chain");
-		this.firewall.addFilterForward(machine.getHostname() + "_ipt_server_dst",
-				"-d " + machine.getSubnets().elementAt(0).getHostAddress() + "/" + machine.getCIDR()
-				+ " -j " + machine.getForwardChain(),
-				"Force any internal traffic going to " + machine.getHostname() + " to its own chain");
+		this.firewall.addForwardDispatch(machine.getHostname(),
+				machine.getSubnets().elementAt(0).getHostAddress() + "/" + machine.getCIDR(),
+				machine.getForwardChain(),
+				machine.getHostname());
 
 		//We want to default drop anything not explicitly whitelisted
 		//Make sure that these are the very first rules as the chain may have been pre-populated
@@ -1139,10 +1178,11 @@ public class Router extends AStructuredProfile {
 		admin += "\n";
 		admin += "        echo \\\"Reloading the firewall - please wait...\\\"\n";
 		admin += "        echo \n";
-		admin += "        echo \\\"Flushing firewall rules  (1/2)  : \\$(iptables -F &> /dev/null && echo -e \\\"\\${GREEN}\\\"OK!\\\"\\${NC}\\\" || echo -e \\\"\\${RED}\\\"ERROR\\\"\\${NC}\\\")\\\"\n";
-		admin += "        echo \\\"Flushing firewall rules  (2/2)  : \\$(ipset destroy &> /dev/null && echo -e \\\"\\${GREEN}\\\"OK!\\\"\\${NC}\\\" || echo -e \\\"\\${RED}\\\"ERROR\\\"\\${NC}\\\")\\\"\n";
-		admin += "        echo \\\"Reloading firewall rules (2/2) : \\$(/etc/ipsets/ipsets.up.sh | ipset restore &> /dev/null && echo -e \\\"\\${GREEN}\\\"OK!\\\"\\${NC}\\\" || echo -e \\\"\\${RED}\\\"ERROR\\\"\\${NC}\\\")\\\"\n";
-		admin += "        echo \\\"Reloading firewall rules (2/2) : \\$(/etc/iptables/iptables.conf.sh | iptables-restore &> /dev/null && echo -e \\\"\\${GREEN}\\\"OK!\\\"\\${NC}\\\" || echo -e \\\"\\${RED}\\\"ERROR\\\"\\${NC}\\\")\\\"\n";
+		//Rather than flushing (which would leave us wide open until everything's reapplied), forget what's been
+		//applied, so every chain is replaced in place
+		admin += "        echo \\\"Forgetting applied rules (1/3) : \\$(rm -rf /run/thornsec/iptables &> /dev/null && echo -e \\\"\\${GREEN}\\\"OK!\\\"\\${NC}\\\" || echo -e \\\"\\${RED}\\\"ERROR\\\"\\${NC}\\\")\\\"\n";
+		admin += "        echo \\\"Reloading ipsets         (2/3) : \\$(/etc/ipsets/ipsets.swap.sh &> /dev/null && echo -e \\\"\\${GREEN}\\\"OK!\\\"\\${NC}\\\" || echo -e \\\"\\${RED}\\\"ERROR\\\"\\${NC}\\\")\\\"\n";
+		admin += "        echo \\\"Reloading firewall rules (3/3) : \\$(/etc/iptables/iptables.apply.sh &> /dev/null && echo -e \\\"\\${GREEN}\\\"OK!\\\"\\${NC}\\\" || echo -e \\\"\\${RED}\\\"ERROR\\\"\\${NC}\\\")\\\"\n";
 		admin += "        echo \n";
 		admin += "        read -n 1 -s -r -p \\\"Press any key to return to the main menu...\\\"\n";
 		admin += "}\n";